@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed-size byte ring buffer connecting two pipeline stages.
+ * The writer blocks while the buffer is full and the reader blocks while it is empty,
+ * so a fast producer can never get more than one buffer ahead of its consumer.
+ */
+final class BoundedPipe {
+    private final byte[] buffer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private int readPos;
+    private int count;
+    private boolean writerClosed;
+    private boolean readerClosed;
+
+    private final WritableByteChannel sourceChannel = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = src.remaining();
+            put(src);
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            lock.lock();
+            try {
+                return !writerClosed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            closeSource();
+        }
+    };
+
+    private final InputStream sink = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return take(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    };
+
+    BoundedPipe(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    /**
+     * The end the upstream stage writes into. It is a channel, so direct buffers are copied
+     * into the ring without a heap detour.
+     */
+    WritableByteChannel sourceChannel() {
+        return sourceChannel;
+    }
+
+    /** The end the downstream stage reads from. */
+    InputStream sink() {
+        return sink;
+    }
+
+    private void put(ByteBuffer src) throws IOException {
+        lock.lock();
+        try {
+            while (src.hasRemaining()) {
+                while (count == buffer.length && !readerClosed) {
+                    notFull.awaitUninterruptibly();
+                }
+                if (readerClosed) {
+                    throw new BrokenPipeException();
+                }
+                int writePos = (readPos + count) % buffer.length;
+                int chunk = Math.min(src.remaining(), Math.min(buffer.length - count, buffer.length - writePos));
+                src.get(buffer, writePos, chunk);
+                count += chunk;
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int take(byte[] b, int off, int len) {
+        if (len == 0) return 0;
+        lock.lock();
+        try {
+            while (count == 0 && !writerClosed) {
+                notEmpty.awaitUninterruptibly();
+            }
+            if (count == 0) return -1;
+            int chunk = Math.min(len, Math.min(count, buffer.length - readPos));
+            System.arraycopy(buffer, readPos, b, off, chunk);
+            readPos = (readPos + chunk) % buffer.length;
+            count -= chunk;
+            notFull.signal();
+            return chunk;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Marks the end of the data; the reader sees end-of-stream once the buffer is drained. */
+    void closeSource() {
+        lock.lock();
+        try {
+            writerClosed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Thrown to the writer once the reader has stopped reading, e.g. when 'head' has its lines. */
+    static final class BrokenPipeException extends IOException {
+        BrokenPipeException() {
+            super("Broken pipe");
+        }
+    }
+
+    private void closeReader() {
+        lock.lock();
+        try {
+            readerClosed = true;
+            count = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The 'sha256sum' and 'md5sum' builtins: print the digest of each file, or of the input
+ * when no file is named, as "digest  name". With -c they read such lines back from the
+ * files named (or the input) and check every file listed, printing "name: OK" or
+ * "name: FAILED"; --quiet leaves out the OK lines. The command fails if any file could
+ * not be read or did not match.
+ * <p>
+ * Files are hashed on a ForkJoin pool, many at once, a bounded number ahead of the one
+ * being printed, so the output still comes in the order the files were given. A file is
+ * read through memory-mapped windows, or, when small, through one reused buffer, and is
+ * never decoded. Every pool thread keeps one MessageDigest per algorithm and resets it
+ * between files. One file is hashed by one thread, since a digest is a single sequence.
+ */
+final class Checksum {
+    // Files hashed ahead of the one being printed.
+    private static final int FILES_IN_FLIGHT = 4 * Runtime.getRuntime().availableProcessors();
+    // Smaller files are read into a buffer; mapping them costs more than it saves.
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+    // Largest region of a file mapped at once.
+    private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private static final Map<String, ThreadLocal<MessageDigest>> DIGESTS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<ByteBuffer> READ_BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(READ_BUFFER_SIZE));
+    private static final HexFormat HEX = HexFormat.of();
+    // "digest  name", or "digest *name" as written in binary mode elsewhere.
+    private static final Pattern MANIFEST_LINE = Pattern.compile("([0-9a-fA-F]+) [ *](.+)");
+
+    private Checksum() {
+    }
+
+    static void sha256sum(CommandContext ctx, String[] args) {
+        run(ctx, args, "sha256sum", "SHA-256");
+    }
+
+    static void md5sum(CommandContext ctx, String[] args) {
+        run(ctx, args, "md5sum", "MD5");
+    }
+
+    private static void run(CommandContext ctx, String[] args, String command, String algorithm) {
+        boolean check = false;
+        boolean quiet = false;
+        List<String> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("-c") || arg.equals("--check")) {
+                check = true;
+            } else if (arg.equals("--quiet")) {
+                quiet = true;
+            } else if (arg.startsWith("-") && arg.length() > 1) {
+                ctx.error("Error: Unknown option '" + arg + "' for " + command + ".");
+                return;
+            } else {
+                files.add(arg);
+            }
+        }
+        if (check) {
+            verify(ctx, files, command, algorithm, quiet);
+        } else if (files.isEmpty()) {
+            if (ctx.stdin() == null) {
+                ctx.error("Error: '" + command + "' requires a file name or piped input.");
+                return;
+            }
+            try {
+                ctx.stdout().println(hashStream(ctx.stdin(), algorithm) + "  -");
+            } catch (IOException e) {
+                ctx.error("Error: Could not read input.");
+            }
+        } else {
+            Deque<FileHash> inFlight = new ArrayDeque<>();
+            for (String name : files) {
+                submit(inFlight, new FileHash(ctx.resolve(name), name, algorithm), hash -> printHash(ctx, hash));
+            }
+            while (!inFlight.isEmpty()) {
+                printHash(ctx, inFlight.poll());
+            }
+        }
+    }
+
+    private static void printHash(CommandContext ctx, FileHash hash) {
+        String digest = hash.join();
+        if (digest == null) {
+            ctx.error(hash.error());
+        } else {
+            ctx.stdout().println(digest + "  " + hash.label);
+        }
+    }
+
+    /** Starts a hash, first finishing the oldest one if too many are under way. */
+    private static void submit(Deque<FileHash> inFlight, FileHash hash, Consumer<FileHash> finish) {
+        if (inFlight.size() == FILES_IN_FLIGHT) {
+            finish.accept(inFlight.poll());
+        }
+        Pools.CPU.execute(hash);
+        inFlight.add(hash);
+    }
+
+    /** Checks the files listed in each manifest (or in the input) against their digests. */
+    private static void verify(CommandContext ctx, List<String> manifests, String command, String algorithm,
+                               boolean quiet) {
+        int digestLength = digest(algorithm).getDigestLength() * 2;
+        Tally tally = new Tally();
+        Deque<FileHash> inFlight = new ArrayDeque<>();
+        Consumer<FileHash> finish = hash -> printCheck(ctx, hash, quiet, tally);
+        List<String> sources = manifests.isEmpty() ? List.of("-") : manifests;
+        if (ctx.stdin() == null && sources.contains("-")) {
+            ctx.error("Error: '" + command + " -c' requires a file name or piped input.");
+            return;
+        }
+        for (String manifest : sources) {
+            InputStream in;
+            try {
+                in = manifest.equals("-") ? ctx.stdin() : Files.newInputStream(ctx.resolve(manifest));
+            } catch (IOException e) {
+                ctx.error("Error: Could not read '" + manifest + "'.");
+                continue;
+            }
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.defaultCharset()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Matcher matcher = MANIFEST_LINE.matcher(line);
+                    if (!matcher.matches() || matcher.group(1).length() != digestLength) {
+                        if (!line.isBlank()) tally.malformed++;
+                        continue;
+                    }
+                    FileHash hash = new FileHash(ctx.resolve(matcher.group(2)), matcher.group(2), algorithm);
+                    hash.expected = matcher.group(1);
+                    submit(inFlight, hash, finish);
+                }
+            } catch (IOException e) {
+                ctx.error("Error: Could not read '" + manifest + "'.");
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            finish.accept(inFlight.poll());
+        }
+        if (tally.malformed > 0) {
+            ctx.error("Error: " + tally.malformed + (tally.malformed == 1 ? " line is" : " lines are")
+                    + " improperly formatted.");
+        }
+        if (tally.unreadable > 0) {
+            ctx.error("Error: " + tally.unreadable + " listed " + (tally.unreadable == 1 ? "file" : "files")
+                    + " could not be read.");
+        }
+        if (tally.mismatched > 0) {
+            ctx.error("Error: " + tally.mismatched + " of " + tally.checked + " computed checksums did NOT match.");
+        }
+        if (tally.checked == 0 && tally.unreadable == 0) {
+            ctx.error("Error: No properly formatted checksum lines found.");
+        }
+    }
+
+    private static void printCheck(CommandContext ctx, FileHash hash, boolean quiet, Tally tally) {
+        String digest = hash.join();
+        OutputSink out = ctx.stdout();
+        if (digest == null) {
+            tally.unreadable++;
+            out.println(hash.label + ": FAILED open or read");
+            return;
+        }
+        tally.checked++;
+        if (digest.equalsIgnoreCase(hash.expected)) {
+            if (!quiet) out.println(hash.label + ": OK");
+        } else {
+            tally.mismatched++;
+            out.println(hash.label + ": FAILED");
+        }
+    }
+
+    private static final class Tally {
+        int checked;
+        int mismatched;
+        int unreadable;
+        int malformed;
+    }
+
+    /** Hashes one file on the pool. Yields the digest in hex, or null if the file can't be read. */
+    private static final class FileHash extends RecursiveTask<String> {
+        private final Path path;
+        final String label;
+        private final String algorithm;
+        // The digest a manifest lists for the file, for -c.
+        String expected;
+        private boolean missing;
+        private boolean directory;
+
+        FileHash(Path path, String label, String algorithm) {
+            this.path = path;
+            this.label = label;
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        protected String compute() {
+            if (Files.isDirectory(path)) {
+                directory = true;
+                return null;
+            }
+            try {
+                return hashFile(path, algorithm);
+            } catch (NoSuchFileException e) {
+                missing = true;
+                return null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        String error() {
+            if (directory) return "Error: '" + label + "' is a directory.";
+            return missing ? "Error: File '" + label + "' not found." : "Error: Could not read '" + label + "'.";
+        }
+    }
+
+    /** The digest of a file in hex, read through mapped windows or, if small, a reused buffer. */
+    static String hashFile(Path path, String algorithm) throws IOException {
+        MessageDigest digest = digest(algorithm);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < MAP_THRESHOLD) {
+                ByteBuffer buffer = READ_BUFFERS.get();
+                buffer.clear();
+                while (channel.read(buffer) > 0 || buffer.position() > 0) {
+                    buffer.flip();
+                    digest.update(buffer.array(), 0, buffer.limit());
+                    buffer.clear();
+                }
+            } else {
+                for (long position = 0; position < size; position += MAP_WINDOW_SIZE) {
+                    digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(MAP_WINDOW_SIZE, size - position)));
+                }
+            }
+        }
+        return HEX.formatHex(digest.digest());
+    }
+
+    private static String hashStream(InputStream in, String algorithm) throws IOException {
+        MessageDigest digest = digest(algorithm);
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return HEX.formatHex(digest.digest());
+    }
+
+    /** This thread's digest for the algorithm, reset and ready for a new message. */
+    private static MessageDigest digest(String algorithm) {
+        ThreadLocal<MessageDigest> digests = DIGESTS.computeIfAbsent(algorithm, name -> ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance(name);
+            } catch (NoSuchAlgorithmException e) {
+                // SHA-256 and MD5 are required of every Java platform.
+                throw new IllegalStateException(e);
+            }
+        }));
+        MessageDigest digest = digests.get();
+        digest.reset();
+        return digest;
+    }
+}
@@ -0,0 +1,11 @@
+/**
+ * A builtin the interpreter can dispatch to. Implementations read and write only through
+ * the context, so the same command works at the prompt, in a pipeline or in a session.
+ */
+@FunctionalInterface
+interface Command {
+    /**
+     * @param args the words after the command name, already unquoted
+     */
+    void execute(CommandContext ctx, String[] args) throws Exception;
+}
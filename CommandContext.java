@@ -0,0 +1,108 @@
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Everything a command runs against: the session it belongs to and its own standard
+ * streams. Pipeline stages and redirections get a copy with different streams, so no
+ * command ever has to swap process-wide state such as System.out.
+ */
+final class CommandContext {
+    private final Session session;
+    private final InputStream stdin;
+    private final OutputSink stdout;
+    private final OutputSink stderr;
+    // Shared by every context derived for the same command line, e.g. all stages of a pipeline.
+    private final AtomicBoolean failed;
+    // Whether the streams are the user's terminal itself, with nothing piped or redirected.
+    private final boolean atTerminal;
+
+    /**
+     * @param stdin the command's input, or null when nothing is piped or redirected into it
+     */
+    CommandContext(Session session, InputStream stdin, OutputSink stdout, OutputSink stderr) {
+        this(session, stdin, stdout, stderr, new AtomicBoolean(), false);
+    }
+
+    private CommandContext(Session session, InputStream stdin, OutputSink stdout, OutputSink stderr,
+                           AtomicBoolean failed, boolean atTerminal) {
+        this.session = session;
+        this.stdin = stdin;
+        this.stdout = stdout;
+        this.stderr = stderr;
+        this.failed = failed;
+        this.atTerminal = atTerminal;
+    }
+
+    Session session() {
+        return session;
+    }
+
+    Path currentDirectory() {
+        return session.getCurrentDirectory();
+    }
+
+    /** Resolves a path argument against the session's working directory. */
+    Path resolve(String name) {
+        return session.getCurrentDirectory().resolve(name);
+    }
+
+    InputStream stdin() {
+        return stdin;
+    }
+
+    OutputSink stdout() {
+        return stdout;
+    }
+
+    OutputSink stderr() {
+        return stderr;
+    }
+
+    /** Prints an error message to stderr and marks the command as failed. */
+    void error(String message) {
+        failed.set(true);
+        stderr.println(message);
+    }
+
+    /** Marks the command as failed without a message, as grep does when nothing matches. */
+    void fail() {
+        failed.set(true);
+    }
+
+    /** The exit status of the command line so far: 0 unless some part of it reported an error. */
+    int status() {
+        return failed.get() ? 1 : 0;
+    }
+
+    /**
+     * Whether the command runs in the foreground at the interactive prompt with nothing
+     * piped or redirected, so its streams are the user's terminal. A context derived with
+     * other streams never is.
+     */
+    boolean isAtTerminal() {
+        return atTerminal;
+    }
+
+    /** The same context, marked as running straight on the user's terminal. */
+    CommandContext atTerminal() {
+        return new CommandContext(session, stdin, stdout, stderr, failed, true);
+    }
+
+    /** The same session and streams with a fresh status, for the next command line. */
+    CommandContext forNextCommand() {
+        return new CommandContext(session, stdin, stdout, stderr, new AtomicBoolean(), atTerminal);
+    }
+
+    CommandContext withStdin(InputStream stdin) {
+        return new CommandContext(session, stdin, stdout, stderr, failed, false);
+    }
+
+    CommandContext withStdout(OutputSink stdout) {
+        return new CommandContext(session, stdin, stdout, stderr, failed, false);
+    }
+
+    CommandContext withStreams(InputStream stdin, OutputSink stdout, OutputSink stderr) {
+        return new CommandContext(session, stdin, stdout, stderr, failed, false);
+    }
+}
@@ -1,343 +1,1021 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Collections;
 import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.Arrays;
+import java.util.stream.Stream;
 
 public class CommandLineInterpreter {
-    private static Path currentDirectory = Paths.get("").toAbsolutePath();
-    private static boolean running = true;
+    // The session behind the interactive prompt and the static convenience methods below.
+    private static final Session CONSOLE = new Session(Paths.get("").toAbsolutePath());
+
+    // Read buffer for scripts and piped command input.
+    private static final int BATCH_BUFFER_SIZE = 1 << 20;
+
+    private static final CommandRegistry COMMANDS = new CommandRegistry();
+    // When redirected output is forced to disk: "off" (left to the OS), "close" (once,
+    // before the file is closed) or "always" (every write is synchronous).
+    private static final String FSYNC = System.getProperty("oscli.fsync", "off");
+
+    // One lexer per thread, reused for every line that thread parses.
+    private static final ThreadLocal<Lexer> LEXER = ThreadLocal.withInitial(Lexer::new);
+    private static final Pipeline[] NO_PIPELINES = new Pipeline[0];
+
+    // Capacity of the ring buffer between two pipeline stages.
+    private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+
+    private static final PrintStream CONSOLE_OUT = System.out;
+    private static FileChannel consoleChannel;
+
+    // Buffer size for byte copies that cannot be handed to the kernel.
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+    // Largest region of a file mapped at once.
+    private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    static {
+        COMMANDS.register("pwd", (ctx, args) -> pwd(ctx));
+        COMMANDS.register("cd", (ctx, args) -> {
+            if (args.length > 0) {
+                cd(ctx, args[0]);
+            } else {
+                ctx.error("Error: 'cd' requires a directory path.");
+            }
+        });
+        COMMANDS.register("ls", CommandLineInterpreter::ls);
+        COMMANDS.register("mkdir", (StreamingCommand) FileCommands::mkdir);
+        COMMANDS.register("rmdir", (StreamingCommand) FileCommands::rmdir);
+        COMMANDS.register("touch", (StreamingCommand) FileCommands::touch);
+        COMMANDS.register("rm", (StreamingCommand) FileCommands::rm);
+        COMMANDS.register("cat", CommandLineInterpreter::cat);
+        COMMANDS.register("grep", Grep::run);
+        COMMANDS.register("head", HeadTail::head);
+        COMMANDS.register("tail", HeadTail::tail);
+        COMMANDS.register("wc", Wc::run);
+        COMMANDS.register("cp", (StreamingCommand) FileCommands::cp);
+        COMMANDS.register("mv", (StreamingCommand) FileCommands::mv);
+        COMMANDS.register("find", Find::run);
+        COMMANDS.register("du", Du::run);
+        COMMANDS.register("sha256sum", Checksum::sha256sum);
+        COMMANDS.register("md5sum", Checksum::md5sum);
+        COMMANDS.register("cache", CommandLineInterpreter::cache);
+        COMMANDS.register("stats", Metrics::stats);
+        COMMANDS.register("jobs", Jobs::list);
+        COMMANDS.register("wait", Jobs::await);
+        COMMANDS.register("fg", Jobs::foreground);
+        COMMANDS.register("parallel", Parallel::run);
+        COMMANDS.register("hash", External::hash);
+        COMMANDS.register("help", (ctx, args) -> help(ctx));
+        COMMANDS.register("exit", (ctx, args) -> exit(ctx));
+    }
 
     public static void main(String[] args) {
+        if (args.length == 2 && (args[0].equals("--server") || args[0].equals("--client"))) {
+            Path socketPath = Paths.get(args[1]);
+            try {
+                if (args[0].equals("--server")) {
+                    InterpreterServer.serve(socketPath, CONSOLE.getCurrentDirectory());
+                } else {
+                    InterpreterServer.connect(socketPath);
+                }
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+
+        boolean stopOnError = false;
+        String command = null;
+        String script = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-e")) {
+                stopOnError = true;
+            } else if (args[i].equals("-c") && i + 1 < args.length && command == null) {
+                command = args[++i];
+            } else if (!args[i].startsWith("-") && script == null) {
+                script = args[i];
+            } else {
+                System.err.println("Usage: CommandLineInterpreter [-e] [-c <commands> | <script>]\n"
+                        + "       CommandLineInterpreter --server|--client <socket>");
+                System.exit(2);
+            }
+        }
+
+        if (command != null) {
+            System.exit(runBatch(new BufferedReader(new StringReader(command)), stopOnError));
+        } else if (script != null) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(script), Charset.defaultCharset()), BATCH_BUFFER_SIZE)) {
+                System.exit(runBatch(reader, stopOnError));
+            } catch (IOException e) {
+                System.err.println("Error: Could not read script '" + script + "'.");
+                System.exit(2);
+            }
+        } else if (System.console() == null) {
+            // Input is piped or redirected: run it as a script rather than prompting.
+            System.exit(runBatch(new BufferedReader(
+                    new InputStreamReader(System.in, Charset.defaultCharset()), BATCH_BUFFER_SIZE), stopOnError));
+        } else {
+            interactive();
+        }
+    }
+
+    private static void interactive() {
         Scanner scanner = new Scanner(System.in);
+        CONSOLE.setConsole(System.in);
         System.out.println("Welcome to the CLI. Type 'help' to see available commands.");
 
-        while (running) {
-            System.out.print(currentDirectory + " > ");
+        while (CONSOLE.isRunning()) {
+            System.out.print(CONSOLE.getCurrentDirectory() + " > ");
+            System.out.flush();
+            if (!scanner.hasNextLine()) {
+                // End of input (Ctrl-D) ends the session like 'exit' does.
+                System.out.println();
+                break;
+            }
             String input = scanner.nextLine().trim();
 
-            if (input.contains(">") || input.contains(">>")) {
-                handleRedirection(input);
-                continue;
-            } else if (input.contains("|")) {
-                handlePipe(input);
-                continue;
+            OutputSink out = consoleSink();
+            OutputSink err = OutputSink.of(System.err);
+            try {
+                run(new CommandContext(CONSOLE, null, out, err).atTerminal(), input);
+            } finally {
+                out.close();
+                err.close();
             }
+        }
+        // Jobs write through sinks of their own, which stay open until they end.
+        CONSOLE.jobs().finishAll();
+    }
 
-            String[] commandParts = input.split("\\s+");
-            if (commandParts.length == 0) continue;
-
-            String command = commandParts[0].toLowerCase();
-            try {
-                switch (command) {
-                    case "pwd":
-                        pwd();
-                        break;
-                    case "cd":
-                        if (commandParts.length > 1) {
-                            cd(commandParts[1]);
-                        } else {
-                            System.out.println("Error: 'cd' requires a directory path.");
-                        }
-                        break;
-                    case "ls":
-                        String[] lsOptions = Arrays.copyOfRange(commandParts, 1, commandParts.length);
-                        ls(lsOptions);
-                        break;
-                    case "mkdir":
-                        if (commandParts.length > 1) {
-                            mkdir(commandParts[1]);
-                        } else {
-                            System.out.println("Error: 'mkdir' requires a directory name.");
-                        }
-                        break;
-                    case "rmdir":
-                        if (commandParts.length > 1) {
-                            rmdir(commandParts[1]);
-                        } else {
-                            System.out.println("Error: 'rmdir' requires a directory name.");
-                        }
-                        break;
-                    case "touch":
-                        if (commandParts.length > 1) {
-                            touch(commandParts[1]);
-                        } else {
-                            System.out.println("Error: 'touch' requires a file name.");
-                        }
-                        break;
-                    case "rm":
-                        if (commandParts.length > 1) {
-                            rm(commandParts[1]);
-                        } else {
-                            System.out.println("Error: 'rm' requires a file name.");
-                        }
-                        break;
-                    case "cat":
-                        if (commandParts.length > 1) {
-                            cat(commandParts[1]);
-                        } else {
-                            System.out.println("Error: 'cat' requires a file name.");
-                        }
-                        break;
-                    case "mv":
-                        if (commandParts.length > 2) {
-                            mv(commandParts[1], commandParts[2]);
-                        } else {
-                            System.out.println("Error: 'mv' requires a source and a destination.");
-                        }
-                        break;
-                    case "help":
-                        help();
-                        break;
-                    case "exit":
-                        exit();
-                        break;
-                    default:
-                        System.out.println("Error: Unknown command. Type 'help' for a list of commands.");
+    /**
+     * Runs commands from a script without prompting, one per line. Blank lines and lines
+     * starting with '#' are skipped. Output is flushed once at the end (or whenever the
+     * buffers fill), not per command. Returns the process exit status: 0 when every command
+     * succeeded, 1 otherwise. With stopOnError the batch ends at the first failing command.
+     * Background jobs still running at the end are waited for; their status is not counted.
+     */
+    static int runBatch(BufferedReader reader, boolean stopOnError) {
+        OutputSink out = consoleSink();
+        OutputSink err = OutputSink.of(System.err);
+        CommandContext ctx = new CommandContext(CONSOLE, null, out, err);
+        int status = 0;
+        try {
+            String line;
+            while (CONSOLE.isRunning() && (line = reader.readLine()) != null) {
+                String input = line.trim();
+                if (input.isEmpty() || input.charAt(0) == '#') continue;
+                if (run(ctx, input) != 0) {
+                    status = 1;
+                    if (stopOnError) break;
                 }
-            } catch (Exception e) {
-                System.out.println("Error executing command: " + e.getMessage());
             }
+        } catch (IOException e) {
+            err.println("Error: Could not read commands: " + e.getMessage());
+            status = 2;
+        } finally {
+            CONSOLE.jobs().finishAll();
+            out.close();
+            err.close();
         }
+        return status;
     }
 
-    public static void pwd() {
-        System.out.println(currentDirectory);
+    /**
+     * Runs one line of input against the given context and returns its exit status. A line
+     * is a list of pipelines (each a plain command, a redirection or a pipe) joined by
+     * ';', '&&' and '||', as in a POSIX shell: '&&' runs the next pipeline only if the last
+     * one succeeded, '||' only if it failed, and a list ending in '&' runs as a background
+     * job. The status is the last foreground pipeline's. The caller owns the context's
+     * sinks and flushes them.
+     */
+    static int run(CommandContext ctx, String input) {
+        Pipeline[] list;
+        try {
+            list = parse(input);
+        } catch (IllegalArgumentException e) {
+            CommandContext command = ctx.forNextCommand();
+            command.error("Error: " + e.getMessage());
+            return command.status();
+        }
+
+        int status = 0;
+        int start = 0;
+        for (int i = 0; i < list.length; i++) {
+            Lexer.Kind then = list[i].then;
+            if (then == Lexer.Kind.BACKGROUND) {
+                Pipeline[] job = Arrays.copyOfRange(list, start, i + 1);
+                ctx.session().jobs().start(ctx, describe(job), jobContext -> runAndOr(jobContext, job, 0, job.length));
+                status = 0;
+                start = i + 1;
+            } else if (then == Lexer.Kind.SEMICOLON || i == list.length - 1) {
+                status = runAndOr(ctx, list, start, i + 1);
+                start = i + 1;
+            }
+            if (!ctx.session().isRunning()) break;
+        }
+        return status;
     }
 
-    public static void cd(String directory) {
-        Path newDir = currentDirectory.resolve(directory).normalize();
-        if (Files.isDirectory(newDir)) {
-            currentDirectory = newDir;
-        } else {
-            System.out.println("Error: Directory not found.");
+    /** Runs pipelines joined by '&&' and '||', each with a fresh status, and returns the last status. */
+    private static int runAndOr(CommandContext ctx, Pipeline[] list, int from, int to) {
+        int status = 0;
+        for (int i = from; i < to && ctx.session().isRunning(); i++) {
+            Lexer.Kind joined = i > from ? list[i - 1].then : null;
+            if (joined == Lexer.Kind.AND && status != 0 || joined == Lexer.Kind.OR && status == 0) continue;
+            CommandContext command = ctx.forNextCommand();
+            Stage[] stages = list[i].stages;
+            if (stages.length == 1) {
+                runCommand(command, stages[0], false);
+            } else {
+                runPipeline(command, stages);
+            }
+            status = command.status();
         }
+        return status;
     }
 
-    public static void ls(String[] options) {
-        boolean showAll = false;
-        boolean reverseOrder = false;
+    /** A command list as it is shown by 'jobs', e.g. "cp -r a b && rm -r a". */
+    private static String describe(Pipeline[] list) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < list.length; i++) {
+            if (i > 0) text.append(' ').append(list[i - 1].then.symbol).append(' ');
+            text.append(list[i].text);
+        }
+        return text.toString();
+    }
+
+    /** Runs a single builtin in the console session, printing to System.out. */
+    public static void execute(String[] commandParts) {
+        execute(legacyContext(), commandParts[0], Arrays.copyOfRange(commandParts, 1, commandParts.length));
+    }
 
-        // Parse options for -a (all) and -r (reverse)
-        for (String option : options) {
-            if (option.equals("-a")) {
-                showAll = true;
-            } else if (option.equals("-r")) {
-                reverseOrder = true;
+    /**
+     * Runs a single builtin. It reads from and writes to the context's streams,
+     * which are pipes when the command runs as a pipeline stage.
+     */
+    static void execute(CommandContext ctx, String name, String[] args) {
+        execute(ctx, name, args, null);
+    }
+
+    /**
+     * Runs a single builtin, first expanding the words that have a glob pattern (where
+     * {@code globs}, if not null, has one). A command that takes its arguments as a stream
+     * gets the expansion lazily; any other gets the matches sorted into an array.
+     */
+    private static void execute(CommandContext ctx, String name, String[] args, String[] globs) {
+        CommandRegistry.Entry entry = COMMANDS.entry(name);
+        Command command;
+        // Builtins are recorded under their registered name, programs under the name as typed.
+        String recordedName;
+        if (entry != null) {
+            command = entry.command;
+            recordedName = entry.name;
+        } else {
+            Path program = External.find(ctx, name);
+            if (program == null) {
+                ctx.error("Error: Unknown command. Type 'help' for a list of commands.");
+                return;
             }
+            command = (programContext, programArgs) -> External.run(programContext, name, program, programArgs);
+            recordedName = name;
         }
+        Metrics.Span span = Metrics.begin(recordedName);
+        boolean failedBefore = ctx.status() != 0;
+        ctx = span.measure(ctx);
+        try {
+            if (globs == null) {
+                command.execute(ctx, args);
+            } else if (command instanceof StreamingCommand) {
+                try (Stream<String> expanded = Glob.expandAll(ctx.currentDirectory(), args, globs, false)) {
+                    ((StreamingCommand) command).execute(ctx, expanded.iterator());
+                }
+            } else {
+                try (Stream<String> expanded = Glob.expandAll(ctx.currentDirectory(), args, globs, true)) {
+                    command.execute(ctx, expanded.toArray(String[]::new));
+                }
+            }
+        } catch (Exception e) {
+            ctx.error("Error executing command: " + e.getMessage());
+        } finally {
+            span.end(!failedBefore && ctx.status() != 0);
+        }
+    }
 
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(currentDirectory)) {
-            List<Path> entries = new ArrayList<>();
-            for (Path entry : stream) {
-                if (showAll || !entry.getFileName().toString().startsWith(".")) {
-                    entries.add(entry);
+    /**
+     * Splits a line into pipelines and those into stages, using the thread's lexer. Returns
+     * no pipelines for a blank line.
+     *
+     * @throws IllegalArgumentException with a user-facing message if the line is malformed
+     */
+    private static Pipeline[] parse(String input) {
+        Lexer lexer = LEXER.get();
+        int count = lexer.tokenize(input);
+        if (count == 0) return NO_PIPELINES;
+
+        // Pipelines are only kept as text for 'jobs', so only when some of them go to the background.
+        boolean background = false;
+        for (int i = 0; i < count && !background; i++) {
+            background = lexer.kind(i) == Lexer.Kind.BACKGROUND;
+        }
+        List<Pipeline> list = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= count; i++) {
+            Lexer.Kind kind = i < count ? lexer.kind(i) : null;
+            if (i < count && !isListOperator(kind)) continue;
+            if (i == start) {
+                // Nothing before the operator, e.g. "&& ls" or "ls ; ; ls". A trailing ';' or '&' is fine.
+                if (i == count && !list.isEmpty() && list.get(list.size() - 1).then != Lexer.Kind.AND
+                        && list.get(list.size() - 1).then != Lexer.Kind.OR) {
+                    break;
                 }
+                throw new IllegalArgumentException("Invalid syntax near '" + (kind != null ? kind.symbol : "end of line") + "'.");
             }
+            list.add(new Pipeline(parseStages(lexer, start, i), kind, background ? display(lexer, start, i) : null));
+            start = i + 1;
+        }
+        return list.toArray(NO_PIPELINES);
+    }
 
-            // Reverse the list if -r option is enabled
-            if (reverseOrder) {
-                Collections.reverse(entries);
+    private static boolean isListOperator(Lexer.Kind kind) {
+        return kind == Lexer.Kind.SEMICOLON || kind == Lexer.Kind.AND || kind == Lexer.Kind.OR
+                || kind == Lexer.Kind.BACKGROUND;
+    }
+
+    /** Splits tokens [from, to) of the lexer into pipeline stages. */
+    private static Stage[] parseStages(Lexer lexer, int from, int to) {
+        int pipes = 0;
+        for (int i = from; i < to; i++) {
+            if (lexer.kind(i) == Lexer.Kind.PIPE) pipes++;
+        }
+        Stage[] stages = new Stage[pipes + 1];
+        int start = from;
+        int stage = 0;
+        for (int i = from; i <= to; i++) {
+            if (i == to || lexer.kind(i) == Lexer.Kind.PIPE) {
+                stages[stage++] = parseStage(lexer, start, i, pipes > 0);
+                start = i + 1;
             }
+        }
+        return stages;
+    }
 
-            // Print the entries
-            for (Path entry : entries) {
-                System.out.println(entry.getFileName());
+    /** Tokens [from, to) as text again, words quoted where they need it. */
+    private static String display(Lexer lexer, int from, int to) {
+        StringBuilder text = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            if (i > from) text.append(' ');
+            String word = lexer.word(i);
+            if (word == null) {
+                text.append(lexer.kind(i).symbol);
+            } else if (!word.isEmpty() && word.chars().noneMatch(c -> " \t'\"\\|&;<>".indexOf(c) >= 0)) {
+                text.append(lexer.glob(i) != null ? lexer.glob(i) : word);
+            } else {
+                text.append('\'').append(word.replace("'", "'\\''")).append('\'');
             }
-        } catch (IOException e) {
-            System.out.println("Error: Unable to list directory contents.");
         }
+        return text.toString();
     }
 
+    private static Stage parseStage(Lexer lexer, int from, int to, boolean inPipeline) {
+        String[] words = new String[to - from];
+        String[] globs = null;
+        int wordCount = 0;
+        String inputFile = null;
+        String outputFile = null;
+        boolean append = false;
+        String errorFile = null;
+        boolean appendError = false;
+        for (int i = from; i < to; i++) {
+            Lexer.Kind kind = lexer.kind(i);
+            if (kind == Lexer.Kind.WORD) {
+                if (lexer.glob(i) != null) {
+                    if (globs == null) globs = new String[to - from];
+                    globs[wordCount] = lexer.glob(i);
+                }
+                words[wordCount++] = lexer.word(i);
+                continue;
+            }
+            if (i + 1 == to || lexer.kind(i + 1) != Lexer.Kind.WORD) {
+                throw new IllegalArgumentException("Invalid syntax for redirection.");
+            }
+            String file = lexer.word(++i);
+            switch (kind) {
+                case REDIRECT_IN:
+                    inputFile = file;
+                    break;
+                case REDIRECT_OUT:
+                case APPEND_OUT:
+                    outputFile = file;
+                    append = kind == Lexer.Kind.APPEND_OUT;
+                    break;
+                default:
+                    errorFile = file;
+                    appendError = kind == Lexer.Kind.APPEND_ERR;
+            }
+        }
+        if (wordCount == 0) {
+            throw new IllegalArgumentException(inPipeline ? "Invalid syntax for piping." : "Invalid syntax for redirection.");
+        }
+        if (globs != null && globs[0] != null) {
+            throw new IllegalArgumentException("Wildcards are not allowed in a command name.");
+        }
+        return new Stage(words[0], Arrays.copyOfRange(words, 1, wordCount),
+                globs != null ? Arrays.copyOfRange(globs, 1, wordCount) : null,
+                inputFile, outputFile, append, errorFile, appendError);
+    }
 
-    public static void mkdir(String directoryName) {
-        Path newDir = currentDirectory.resolve(directoryName);
-        try {
-            Files.createDirectory(newDir);
-            System.out.println("Directory created: " + directoryName);
-        } catch (IOException e) {
-            System.out.println("Error: Could not create directory.");
+    /**
+     * Runs one parsed command, with its redirections if it has any. {@code pipedOut} is set
+     * for a pipeline stage whose output goes on to the next stage.
+     */
+    private static void runCommand(CommandContext ctx, Stage stage, boolean pipedOut) {
+        if (stage.inputFile == null && stage.outputFile == null && stage.errorFile == null) {
+            execute(ctx, stage.name, stage.args, stage.globs);
+        } else {
+            redirect(ctx, stage, pipedOut);
         }
     }
 
+    /** One pipeline of a command list, with the operator that follows it (null at the end). */
+    private static final class Pipeline {
+        final Stage[] stages;
+        final Lexer.Kind then;
+        // The pipeline as typed, for 'jobs'; null unless the line starts a job.
+        final String text;
+
+        Pipeline(Stage[] stages, Lexer.Kind then, String text) {
+            this.stages = stages;
+            this.then = then;
+            this.text = text;
+        }
+    }
+
+    /** One command of a parsed line: its name, its arguments and where it reads and writes. */
+    private static final class Stage {
+        final String name;
+        final String[] args;
+        // The glob pattern of each argument that has wildcards, or null if none has.
+        final String[] globs;
+        // Each file is null when that stream is not redirected.
+        final String inputFile;
+        final String outputFile;
+        final boolean append;
+        final String errorFile;
+        final boolean appendError;
+
+        Stage(String name, String[] args, String[] globs, String inputFile, String outputFile, boolean append,
+              String errorFile, boolean appendError) {
+            this.name = name;
+            this.args = args;
+            this.globs = globs;
+            this.inputFile = inputFile;
+            this.outputFile = outputFile;
+            this.append = append;
+            this.errorFile = errorFile;
+            this.appendError = appendError;
+        }
+    }
+
+    public static void pwd() {
+        pwd(legacyContext());
+    }
+
+    static void pwd(CommandContext ctx) {
+        ctx.stdout().println(ctx.currentDirectory());
+    }
+
+    public static void cd(String directory) {
+        cd(legacyContext(), directory);
+    }
+
+    static void cd(CommandContext ctx, String directory) {
+        Path newDir = ctx.resolve(directory).normalize();
+        if (Files.isDirectory(newDir)) {
+            ctx.session().setCurrentDirectory(newDir);
+        } else {
+            ctx.error("Error: Directory not found.");
+        }
+    }
+
+    public static void ls(String[] options) {
+        ls(legacyContext(), options);
+    }
+
+    static void ls(CommandContext ctx, String[] options) {
+        Ls.run(ctx, options);
+    }
+
+
+    public static void mkdir(String directoryName) {
+        FileCommands.mkdir(legacyContext(), List.of(directoryName).iterator());
+    }
+
     public static void rmdir(String directoryName) {
-        Path dirToDelete = currentDirectory.resolve(directoryName);
-        try {
-            if (Files.exists(dirToDelete)) {
-                if (Files.isDirectory(dirToDelete)) {
-                    Files.delete(dirToDelete);
-                    System.out.println("Directory removed: " + directoryName);
-                } else {
-                    System.out.println("Error: '" + directoryName + "' is not a directory.");
+        FileCommands.rmdir(legacyContext(), List.of(directoryName).iterator());
+    }
+
+    public static void touch(String fileName) {
+        FileCommands.touch(legacyContext(), List.of(fileName).iterator());
+    }
+
+    public static void rm(String fileName) {
+        FileCommands.rm(legacyContext(), List.of(fileName).iterator());
+    }
+
+    public static void cat(String fileName) {
+        cat(legacyContext(), new String[]{fileName});
+    }
+
+    public static void cat(String[] args) {
+        cat(legacyContext(), args);
+    }
+
+    /**
+     * Copies files to the output byte for byte, without decoding them into lines.
+     * When the output is backed by a channel (the console or a redirect target) the
+     * kernel moves the data with transferTo; otherwise it is copied through a large buffer.
+     * Options: -n numbers the lines, --range=START-END limits each file to a byte range.
+     */
+    static void cat(CommandContext ctx, String[] args) {
+        boolean number = false;
+        long rangeStart = 0;
+        long rangeEnd = Long.MAX_VALUE;
+        List<String> files = new ArrayList<>();
+
+        for (String arg : args) {
+            if (arg.equals("-n")) {
+                number = true;
+            } else if (arg.startsWith("--range=")) {
+                String range = arg.substring("--range=".length());
+                int dash = range.indexOf('-');
+                try {
+                    if (dash < 0) throw new NumberFormatException();
+                    String start = range.substring(0, dash);
+                    String end = range.substring(dash + 1);
+                    rangeStart = start.isEmpty() ? 0 : Long.parseLong(start);
+                    rangeEnd = end.isEmpty() ? Long.MAX_VALUE : Long.parseLong(end);
+                } catch (NumberFormatException e) {
+                    ctx.error("Error: Invalid byte range '" + range + "'. Use --range=START-END.");
+                    return;
+                }
+                if (rangeStart < 0 || rangeEnd < rangeStart) {
+                    ctx.error("Error: Invalid byte range '" + range + "'. Use --range=START-END.");
+                    return;
                 }
             } else {
-                System.out.println("Error: Directory not found.");
+                files.add(arg);
             }
-        } catch (IOException e) {
-            System.out.println("Error: Could not remove directory.");
         }
-    }
 
-    public static void touch(String fileName) {
-        Path filePath = currentDirectory.resolve(fileName);
-        try {
-            Files.createFile(filePath);
-            System.out.println("File created: " + fileName);
-        } catch (IOException e) {
-            System.out.println("Error: Could not create file.");
+        OutputSink out = ctx.stdout();
+        LineNumbering numbering = number ? new LineNumbering() : null;
+
+        if (files.isEmpty()) {
+            InputStream in = ctx.stdin();
+            if (in == null) {
+                ctx.error("Error: 'cat' requires a file name.");
+                return;
+            }
+            // Copies the pipeline input through, so 'cat' can act as a downstream stage.
+            try {
+                catStream(in, out, numbering);
+            } catch (IOException e) {
+                ctx.error("Error: Could not read input.");
+            }
+            return;
         }
+
+        for (String fileName : files) {
+            Path filePath = ctx.resolve(fileName);
+            try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                long end = Math.min(rangeEnd, channel.size());
+                if (rangeStart < end) {
+                    catChannel(channel, rangeStart, end, out, numbering);
+                }
+            } catch (IOException e) {
+                ctx.error("Error: Could not read file.");
+            }
+            if (out.checkError()) break;
+        }
+        out.flush();
     }
 
-    public static void rm(String fileName) {
-        Path filePath = currentDirectory.resolve(fileName);
-        try {
-            if (Files.exists(filePath)) {
-                if (Files.isRegularFile(filePath)) {
-                    Files.delete(filePath);
-                    System.out.println("File removed: " + fileName);
-                } else {
-                    System.out.println("Error: '" + fileName + "' is a directory, not a file.");
+    /** Copies a byte range of a file to the output, through the kernel when the output is a channel. */
+    static void copyRange(FileChannel channel, long start, long end, OutputSink out) throws IOException {
+        catChannel(channel, start, end, out, null);
+    }
+
+    private static void catChannel(FileChannel channel, long start, long end, OutputSink out,
+                                   LineNumbering numbering) throws IOException {
+        // Asking for the channel drains anything already printed, so ordering is kept.
+        WritableByteChannel target = numbering == null ? out.channel() : null;
+        if (target != null) {
+            long position = start;
+            try {
+                while (position < end) {
+                    position += channel.transferTo(position, end - position, target);
                 }
+            } catch (BoundedPipe.BrokenPipeException e) {
+                // The next stage stopped reading. Like any failed write, the sink remembers it.
+                out.writeFailed();
+            }
+            out.transferred(position - start);
+            return;
+        }
+
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        if (numbering != null) {
+            // Scans the file through mapped windows, so numbering never re-reads or decodes it.
+            for (long position = start; position < end && !out.checkError(); ) {
+                long window = Math.min(MAP_WINDOW_SIZE, end - position);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+                while (mapped.hasRemaining() && !out.checkError()) {
+                    int chunk = Math.min(buffer.length, mapped.remaining());
+                    mapped.get(buffer, 0, chunk);
+                    numbering.write(buffer, chunk, out);
+                }
+                position += window;
+            }
+            return;
+        }
+
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        long position = start;
+        while (position < end && !out.checkError()) {
+            wrapped.clear().limit((int) Math.min(buffer.length, end - position));
+            int read = channel.read(wrapped, position);
+            if (read < 0) break;
+            out.write(buffer, 0, read);
+            position += read;
+        }
+    }
+
+    private static void catStream(InputStream in, OutputSink out, LineNumbering numbering) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int read;
+        // Stops once nobody reads the output any more, instead of draining the input for nothing.
+        while (!out.checkError() && (read = in.read(buffer)) != -1) {
+            if (numbering == null) {
+                out.write(buffer, 0, read);
             } else {
-                System.out.println("Error: File not found.");
+                numbering.write(buffer, read, out);
             }
-        } catch (IOException e) {
-            System.out.println("Error: Could not remove file.");
         }
     }
 
-    public static void cat(String fileName) {
-        Path filePath = currentDirectory.resolve(fileName);
-        try {
-            Files.lines(filePath).forEach(System.out::println);
-        } catch (IOException e) {
-            System.out.println("Error: Could not read file.");
+    /**
+     * The sink for a command typed at the prompt: straight to the stdout descriptor when
+     * System.out is the real console, so cat can transfer into it, otherwise System.out.
+     */
+    private static OutputSink consoleSink() {
+        if (System.out != CONSOLE_OUT) {
+            return OutputSink.of(System.out);
+        }
+        synchronized (CommandLineInterpreter.class) {
+            if (consoleChannel == null) {
+                consoleChannel = new FileOutputStream(FileDescriptor.out).getChannel();
+            }
+            return OutputSink.of(consoleChannel);
         }
     }
 
-    public static void mv(String sourceName, String destinationName) {
-        Path sourcePath = currentDirectory.resolve(sourceName);
-        Path destinationPath = currentDirectory.resolve(destinationName);
+    /**
+     * The context behind the static convenience methods: the console session, writing
+     * straight through to System.out. Errors go there too, as they always have for callers
+     * of these methods.
+     */
+    private static CommandContext legacyContext() {
+        OutputSink out = OutputSink.writeThrough(System.out);
+        return new CommandContext(CONSOLE, null, out, out);
+    }
 
-        try {
-            if (Files.exists(sourcePath)) {
-                Files.move(sourcePath, destinationPath, StandardCopyOption.REPLACE_EXISTING);
-                System.out.println("Moved/Renamed '" + sourceName + "' to '" + destinationName + "'.");
-            } else {
-                System.out.println("Error: Source '" + sourceName + "' does not exist.");
+    /**
+     * Prefixes every line with its number as the bytes stream past, the way 'cat -n' does.
+     * Numbering carries on across files and buffer boundaries.
+     */
+    private static final class LineNumbering {
+        private long line = 1;
+        private boolean atLineStart = true;
+
+        void write(byte[] buffer, int length, OutputSink out) {
+            int from = 0;
+            for (int i = 0; i < length; i++) {
+                if (atLineStart) {
+                    out.write(buffer, from, i - from);
+                    from = i;
+                    byte[] prefix = String.format("%6d\t", line++).getBytes(StandardCharsets.US_ASCII);
+                    out.write(prefix, 0, prefix.length);
+                    atLineStart = false;
+                }
+                if (buffer[i] == '\n') {
+                    atLineStart = true;
+                }
             }
-        } catch (IOException e) {
-            System.out.println("Error: Could not move/rename '" + sourceName + "'.");
+            out.write(buffer, from, length - from);
+        }
+    }
+
+    public static void mv(String sourceName, String destinationName) {
+        FileCommands.mv(legacyContext(), List.of(sourceName, destinationName).iterator());
+    }
+
+    /**
+     * Drops the cached listings a change to this path makes stale: its parent's, and its
+     * own if it is a directory. The cache's watcher would notice too, but only later.
+     */
+    static void changed(Path path) {
+        DirectoryCache cache = Ls.cache();
+        cache.invalidate(path);
+        if (path.getParent() != null) cache.invalidate(path.getParent());
+    }
+
+    /** 'cache' prints the directory cache's counters; 'cache on|off|clear' controls it. */
+    static void cache(CommandContext ctx, String[] args) {
+        DirectoryCache cache = Ls.cache();
+        if (args.length == 0) {
+            ctx.stdout().println(cache.stats());
+        } else if (args[0].equals("on") || args[0].equals("off")) {
+            cache.setEnabled(args[0].equals("on"));
+        } else if (args[0].equals("clear")) {
+            cache.clear();
+        } else {
+            ctx.error("Error: Usage: cache [on|off|clear]");
         }
     }
 
     public static Path getCurrentDirectory() {
-        return currentDirectory;
+        return CONSOLE.getCurrentDirectory();
     }
 
     public static void help() {
-        System.out.println("Available Commands:\n"
+        help(legacyContext());
+    }
+
+    static void help(CommandContext ctx) {
+        ctx.stdout().println("Available Commands:\n"
                 + "pwd - Print working directory\n"
                 + "cd <directory> - Change directory\n"
-                + "ls - List directory contents\n"
-                + "mkdir <name> - Create directory\n"
-                + "rmdir <name> - Remove directory\n"
-                + "touch <name> - Create file\n"
-                + "rm <name> - Remove file\n"
-                + "cat <name> - Display file contents\n"
-                + "mv <source> <destination> - Move or rename a file or directory\n"
+                + "ls [-a] [-r] [-l] [-R] [-S|-t|-U] [--top N] [--no-cache] [path]... - List directories, or files (-S by size, -t by time, -U unsorted)\n"
+                + "cache [on|off|clear] - Show or control the directory listing cache\n"
+                + "stats [reset] - Show latency percentiles, bytes and allocation per command\n"
+                + "mkdir [-p] [-q] <name>... - Create directories (-p also creates parents)\n"
+                + "rmdir [-q] <name>... - Remove empty directories\n"
+                + "touch [-q] <name>... - Create files\n"
+                + "rm [-r] [-q] <name>... - Remove files (-r removes directories and their contents)\n"
+                + "cat [-n] [--range=START-END] <name>... - Display file contents (without a name, copies piped input)\n"
+                + "grep [-c] [-n] [-r] [-F] <pattern> [name]... - Print matching lines (without a name, searches piped input)\n"
+                + "head [-n N] [name]... - Print the first N lines (default 10)\n"
+                + "tail [-n N] [-f] [name]... - Print the last N lines; -f follows a growing file until Enter is pressed\n"
+                + "wc [-l] [-w] [-c] [name]... - Count lines, words and bytes\n"
+                + "cp [-r] [-q] <source>... <destination> - Copy files, or directories with -r, printing progress\n"
+                + "mv [-q] <source>... <destination> - Rename a file, or move files into an existing directory\n"
+                + "find [path]... [-name|-iname GLOB] [-type f|d|l] [-size [+-]N[c|k|M|G]] [-mtime [+-]N] - Find files passing every test\n"
+                + "du [-s] [-h] [--no-cache] [path]... - Show directory sizes in KB (-s totals only, -h readable units)\n"
+                + "sha256sum [-c] [--quiet] [name]..., md5sum ... - Print checksums, or check those listed with -c\n"
                 + "> <file> - Redirect output to a file (overwrite)\n"
                 + ">> <file> - Redirect output to a file (append)\n"
-                + "| - Pipe the output of one command to another\n"
+                + "< <file> - Read input from a file\n"
+                + "2> <file>, 2>> <file> - Redirect errors to a file\n"
+                + "cmd1 | cmd2 | ... - Pipe the output of each command into the next\n"
+                + "cmd1 ; cmd2, cmd1 && cmd2, cmd1 || cmd2 - Run in turn, only if cmd1 succeeded, only if it failed\n"
+                + "cmd & - Run in the background; jobs lists them, wait [N]... waits, fg [N] waits for one\n"
+                + "parallel [-j N] '<command>'... - Run commands at once, at most N at a time, output kept in order\n"
+                + "*, ?, [...], ** - Wildcards in arguments, expanded to matching paths (quote them to keep them)\n"
+                + "<program> [args]... - Any other name runs that program from PATH\n"
+                + "hash [-r] - Show where programs were found on PATH, or forget them\n"
                 + "exit - Exit the CLI\n"
                 + "help - Display this help message\n");
     }
 
     public static void exit() {
-        System.out.println("Exiting CLI. Goodbye!");
-        running = false;
+        exit(legacyContext());
+    }
+
+    static void exit(CommandContext ctx) {
+        ctx.stdout().println("Exiting CLI. Goodbye!");
+        ctx.session().stop();
     }
 
     public static void handleRedirection(String input) {
-        String[] parts;
-        boolean append = input.contains(">>");
+        run(legacyContext(), input);
+    }
 
-        if (append) {
-            parts = input.split(">>");
-        } else {
-            parts = input.split(">");
-        }
+    /**
+     * Runs a command with its redirections. Output files are written through a FileChannel
+     * with a large buffer, and 'cat' hands whole files to the kernel with transferTo, so a
+     * redirected copy runs at disk speed. The oscli.fsync property decides whether the data
+     * is also forced to disk. Redirections apply to pipeline stages too: a stage whose
+     * output goes to a file leaves the next stage with empty input, as in other shells.
+     * Where the output was sent is reported, unless the report would go into a pipe.
+     */
+    private static void redirect(CommandContext ctx, Stage stage, boolean pipedOut) {
+        Metrics.Span span = Metrics.begin(Metrics.REDIRECT);
+        boolean failedBefore = ctx.status() != 0;
+        InputStream in = null;
+        FileChannel outChannel = null;
+        FileChannel errChannel = null;
+        OutputSink out = null;
+        OutputSink err = null;
+        try {
+            if (stage.inputFile != null) {
+                try {
+                    in = Files.newInputStream(ctx.resolve(stage.inputFile));
+                } catch (IOException e) {
+                    ctx.error("Error: Could not read input from '" + stage.inputFile + "'.");
+                    return;
+                }
+            }
+            try {
+                if (stage.outputFile != null) {
+                    outChannel = openForRedirect(ctx.resolve(stage.outputFile), stage.append);
+                    out = OutputSink.ofFile(outChannel);
+                }
+                if (stage.errorFile != null) {
+                    errChannel = openForRedirect(ctx.resolve(stage.errorFile), stage.appendError);
+                    err = OutputSink.ofFile(errChannel);
+                }
+            } catch (IOException e) {
+                ctx.error("Error: Could not redirect output to file.");
+                return;
+            }
 
-        if (parts.length < 2) {
-            System.out.println("Error: Invalid syntax for redirection.");
-            return;
+            execute(span.measure(ctx.withStreams(in != null ? in : ctx.stdin(), out != null ? out : ctx.stdout(),
+                    err != null ? err : ctx.stderr())), stage.name, stage.args, stage.globs);
+        } finally {
+            boolean written = closeRedirect(ctx, out, outChannel, stage.outputFile)
+                    & closeRedirect(ctx, err, errChannel, stage.errorFile);
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+            span.end(!failedBefore && ctx.status() != 0);
+            if (written && stage.outputFile != null && outChannel != null && !pipedOut) {
+                ctx.stdout().println("Output redirected to " + stage.outputFile);
+            }
         }
+    }
 
-        String command = parts[0].trim();
-        String fileName = parts[1].trim();
-        Path filePath = currentDirectory.resolve(fileName);
+    private static FileChannel openForRedirect(Path file, boolean append) throws IOException {
+        Set<OpenOption> options = new HashSet<>();
+        options.add(StandardOpenOption.WRITE);
+        options.add(StandardOpenOption.CREATE);
+        options.add(append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        if (FSYNC.equals("always")) {
+            options.add(StandardOpenOption.DSYNC);
+        }
+        FileChannel channel = FileChannel.open(file, options);
+        changed(file);
+        return channel;
+    }
 
-        try {
-            PrintStream originalOut = System.out;
-            PrintStream fileOut = new PrintStream(new FileOutputStream(filePath.toFile(), append));
-            System.setOut(fileOut);
-
-            if (command.equals("ls")) {
-                ls(new String[]{});
-            } else if (command.equals("pwd")) {
-                pwd();
-            } else {
-                System.out.println("Error: Redirection only supports ls and pwd commands.");
+    /**
+     * Flushes and closes a redirect target, forcing it to disk first if asked to.
+     * Returns false, after reporting it, if any of the output could not be written.
+     */
+    private static boolean closeRedirect(CommandContext ctx, OutputSink sink, FileChannel channel, String name) {
+        if (channel == null) return true;
+        try (channel) {
+            sink.close();
+            if (sink.checkError()) throw new IOException();
+            if (FSYNC.equals("close")) {
+                channel.force(true);
             }
-
-            System.setOut(originalOut);
-            fileOut.close();
-            System.out.println("Output redirected to " + fileName);
-
         } catch (IOException e) {
-            System.out.println("Error: Could not redirect output to file.");
+            ctx.error("Error: Could not write output to '" + name + "'.");
+            return false;
+        } finally {
+            changed(ctx.resolve(name));
         }
+        return true;
     }
 
     public static void handlePipe(String input) {
-        String[] commands = input.split("\\|");
+        run(legacyContext(), input);
+    }
 
-        if (commands.length < 2) {
-            System.out.println("Error: Invalid syntax for piping.");
+    /**
+     * Runs every stage of a pipeline on its own thread, all at once. Neighbouring stages
+     * are connected by a bounded pipe, so memory stays flat no matter how much data flows
+     * through and downstream stages see output as soon as it is produced.
+     */
+    private static void runPipeline(CommandContext ctx, Stage[] stages) {
+        Metrics.Span span = Metrics.begin(Metrics.PIPELINE);
+        boolean failedBefore = ctx.status() != 0;
+        ctx = span.measure(ctx);
+        if (runPrograms(ctx, stages)) {
+            ctx.stdout().flush();
+            span.end(!failedBefore && ctx.status() != 0);
             return;
         }
+        Thread[] threads = new Thread[stages.length];
+        InputStream upstream = ctx.stdin();
+        for (int i = 0; i < stages.length; i++) {
+            boolean last = i == stages.length - 1;
+            BoundedPipe pipe = last ? null : new BoundedPipe(PIPE_BUFFER_SIZE);
+            // Only the last stage writes to the caller's output; it is the only writer there.
+            OutputSink stageOut = last ? ctx.stdout() : OutputSink.of(pipe.sourceChannel());
+            CommandContext stageContext = ctx.withStreams(upstream, stageOut, ctx.stderr().share());
+            Stage stage = stages[i];
+            boolean pipedIn = i > 0;
+            threads[i] = new Thread(() -> runStage(stageContext, stage, pipedIn, pipe), "pipe-stage-" + i);
+            threads[i].setDaemon(true);
+            upstream = last ? null : pipe.sink();
+        }
 
-        String firstCommand = commands[0].trim();
-        String secondCommand = commands[1].trim();
-
+        for (Thread thread : threads) {
+            thread.start();
+        }
         try {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            PrintStream originalOut = System.out;
-            System.setOut(new PrintStream(outputStream));
-
-            if (firstCommand.equals("ls")) {
-                ls(new String[]{});
-            } else if (firstCommand.equals("pwd")) {
-                pwd();
-            } else {
-                System.out.println("Error: Unsupported command for piping.");
-                return;
+            for (Thread thread : threads) {
+                thread.join();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ctx.error("Error executing piped command: interrupted.");
+        }
+        ctx.stdout().flush();
+        span.end(!failedBefore && ctx.status() != 0);
+    }
 
-            System.out.flush();
-            System.setOut(originalOut);
-
-            if (secondCommand.startsWith("cat")) {
-                String output = outputStream.toString();
-                System.out.println(output);
+    /**
+     * Runs a pipeline made only of programs from PATH as one native process pipeline, with
+     * redirections at its ends handed to the kernel. Returns false, having run nothing, if
+     * any stage is a builtin or redirects anywhere else.
+     */
+    private static boolean runPrograms(CommandContext ctx, Stage[] stages) {
+        List<List<String>> commands = new ArrayList<>(stages.length);
+        for (int i = 0; i < stages.length; i++) {
+            Stage stage = stages[i];
+            if (stage.errorFile != null || stage.inputFile != null && i > 0
+                    || stage.outputFile != null && i < stages.length - 1 || COMMANDS.lookup(stage.name) != null) {
+                return false;
+            }
+            Path program = External.find(ctx, stage.name);
+            if (program == null) return false;
+            List<String> command = new ArrayList<>(stage.args.length + 1);
+            command.add(program.toString());
+            if (stage.globs == null) {
+                command.addAll(Arrays.asList(stage.args));
             } else {
-                System.out.println("Error: Unsupported second command for piping.");
+                try (Stream<String> expanded = Glob.expandAll(ctx.currentDirectory(), stage.args, stage.globs, true)) {
+                    expanded.forEach(command::add);
+                }
             }
+            commands.add(command);
+        }
+        Stage first = stages[0];
+        Stage last = stages[stages.length - 1];
+        Path input = first.inputFile != null ? ctx.resolve(first.inputFile) : null;
+        if (input != null && !Files.isReadable(input)) {
+            ctx.error("Error: Could not read input from '" + first.inputFile + "'.");
+            return true;
+        }
+        Path output = last.outputFile != null ? ctx.resolve(last.outputFile) : null;
+        boolean started = false;
+        try {
+            started = External.pipeline(ctx, commands, input, output, last.append);
+        } finally {
+            if (output != null) changed(output);
+        }
+        if (started && output != null) {
+            ctx.stdout().println("Output redirected to " + last.outputFile);
+        }
+        return true;
+    }
 
-        } catch (Exception e) {
-            System.out.println("Error executing piped command: " + e.getMessage());
+    private static void runStage(CommandContext stage, Stage command, boolean pipedIn, BoundedPipe pipe) {
+        try {
+            runCommand(stage, command, pipe != null);
+        } finally {
+            stage.stderr().close();
+            if (pipe != null) {
+                stage.stdout().close();
+                // Signals end of input to the next stage.
+                pipe.closeSource();
+            } else {
+                // The last stage writes into the caller's sink, which stays open.
+                stage.stdout().flush();
+            }
+            if (pipedIn) {
+                try {
+                    // Lets the upstream stage stop early instead of blocking on a full pipe.
+                    stage.stdin().close();
+                } catch (IOException ignored) {
+                }
+            }
         }
     }
 }
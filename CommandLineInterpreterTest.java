@@ -3,7 +3,20 @@ import java.nio.file.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.StringReader;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -114,6 +127,121 @@ public class CommandLineInterpreterTest {
         Files.delete(secondFile);
     }
 
+    @Test
+    public void testLsRecursiveAndLong() throws IOException {
+        Path tree = Files.createDirectory(testDir.resolve("tree"));
+        Files.createDirectories(tree.resolve("a"));
+        Files.createDirectories(tree.resolve("c"));
+        Files.writeString(tree.resolve("b.txt"), "hello");
+        Files.createFile(tree.resolve("a").resolve("x.txt"));
+        Files.createFile(tree.resolve("c").resolve("y.txt"));
+
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        try (OutputSink out = OutputSink.of(target)) {
+            CommandContext ctx = new CommandContext(new Session(tree), null, out, out);
+            CommandLineInterpreter.run(ctx, "ls -R");
+            out.flush();
+            assertEquals(".:\na\nb.txt\nc\n\n./a:\nx.txt\n\n./c:\ny.txt\n", target.toString(),
+                    "ls -R did not list the tree depth first in name order.");
+
+            target.reset();
+            CommandLineInterpreter.run(ctx, "ls -lr");
+            out.flush();
+        }
+        String[] lines = target.toString().split("\n");
+        assertEquals(3, lines.length, "ls -l did not print one line per entry.");
+        assertTrue(lines[0].startsWith("d") && lines[0].endsWith(" c"), "ls -lr did not start with directory c.");
+        assertTrue(lines[1].startsWith("-") && lines[1].matches(".* 5 .* b\\.txt"), "ls -l did not show the size of b.txt.");
+
+        target.reset();
+        try (OutputSink out = OutputSink.of(target)) {
+            CommandContext ctx = new CommandContext(new Session(tree), null, out, out);
+            CommandLineInterpreter.run(ctx, "ls a c/y.txt b.txt");
+            CommandLineInterpreter.run(ctx, "ls c");
+            CommandLineInterpreter.run(ctx, "ls *.txt none");
+            CommandLineInterpreter.run(ctx, "ls -R c");
+        }
+        assertEquals("b.txt\nc/y.txt\n\na:\nx.txt\ny.txt\nError: 'none' does not exist.\nb.txt\nc:\ny.txt\n",
+                target.toString(), "ls did not list the paths it was given.");
+
+        Files.walk(tree).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    @Test
+    public void testLsSortKeysAndTop() throws IOException {
+        Path dir = Files.createDirectory(testDir.resolve("sizes"));
+        Files.writeString(dir.resolve("small"), "1");
+        Files.writeString(dir.resolve("large"), "12345");
+        Files.writeString(dir.resolve("medium"), "123");
+
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        try (OutputSink out = OutputSink.of(target)) {
+            CommandContext ctx = new CommandContext(new Session(dir), null, out, out);
+            CommandLineInterpreter.run(ctx, "ls -S");
+            CommandLineInterpreter.run(ctx, "ls -S --top 2");
+            CommandLineInterpreter.run(ctx, "ls -Sr --top=1");
+            CommandLineInterpreter.run(ctx, "ls --top 0");
+        }
+        assertEquals("large\nmedium\nsmall\nlarge\nmedium\nsmall\nError: --top requires a positive number.\n",
+                target.toString(), "ls did not order by size or keep only the top entries.");
+
+        Files.walk(dir).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    @Test
+    public void testLsCacheInvalidation() throws Exception {
+        Path dir = Files.createDirectory(testDir.resolve("cached"));
+        Files.createFile(dir.resolve("one"));
+        DirectoryCache cache = Ls.cache();
+
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        try (OutputSink out = OutputSink.of(target)) {
+            CommandContext ctx = new CommandContext(new Session(dir), null, out, out);
+            CommandLineInterpreter.run(ctx, "ls");
+            long hits = cache.hits();
+            CommandLineInterpreter.run(ctx, "ls");
+            assertEquals(hits + 1, cache.hits(), "A repeated ls did not hit the cache.");
+            CommandLineInterpreter.run(ctx, "ls --no-cache");
+            assertEquals(hits + 1, cache.hits(), "ls --no-cache used the cache.");
+
+            CommandLineInterpreter.run(ctx, "touch two");
+            out.flush();
+            target.reset();
+            CommandLineInterpreter.run(ctx, "ls");
+            out.flush();
+            assertEquals("one\ntwo\n", target.toString(), "touch did not invalidate the cached listing.");
+
+            // A change made outside the interpreter is noticed too.
+            Files.createFile(dir.resolve("three"));
+            long deadline = System.currentTimeMillis() + 10_000;
+            do {
+                Thread.sleep(20);
+                target.reset();
+                CommandLineInterpreter.run(ctx, "ls");
+                out.flush();
+            } while (!target.toString().contains("three") && System.currentTimeMillis() < deadline);
+            assertEquals("one\nthree\ntwo\n", target.toString(), "An outside change did not invalidate the cache.");
+        }
+
+        Files.walk(dir).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    @Test
+    public void testEntrySorterSpillsAndMerges() throws IOException {
+        List<String> sorted = new ArrayList<>();
+        try (EntrySorter sorter = new EntrySorter(DirectoryEntry.BY_NAME, 2)) {
+            // 150 entries in runs of two forces spills and a multi-pass merge.
+            for (int i = 149; i >= 0; i--) {
+                sorter.add(DirectoryEntry.nameOnly(String.format("entry%03d", i)));
+            }
+            sorter.drain(entry -> sorted.add(entry.name));
+        }
+        assertEquals(150, sorted.size(), "Entries were lost while merging spilled runs.");
+        for (int i = 0; i < sorted.size(); i++) {
+            assertEquals(String.format("entry%03d", i), sorted.get(i), "Merged entries are out of order.");
+        }
+    }
+
 
     @Test
     public void testCat() throws IOException {
@@ -127,6 +255,24 @@ public class CommandLineInterpreterTest {
         Files.delete(file);
     }
 
+    @Test
+    public void testCatMultipleFilesAndOptions() throws IOException {
+        Path first = Files.writeString(testDir.resolve("first.txt"), "alpha\nbeta\n");
+        Path second = Files.writeString(testDir.resolve("second.txt"), "gamma\n");
+
+        String output = captureOutput(() -> CommandLineInterpreter.cat(new String[]{"first.txt", "second.txt"}));
+        assertEquals("alpha\nbeta\ngamma\n", output, "cat did not concatenate both files.");
+
+        output = captureOutput(() -> CommandLineInterpreter.cat(new String[]{"-n", "first.txt", "second.txt"}));
+        assertEquals("     1\talpha\n     2\tbeta\n     3\tgamma\n", output, "cat -n did not number lines across files.");
+
+        output = captureOutput(() -> CommandLineInterpreter.cat(new String[]{"--range=6-10", "first.txt"}));
+        assertEquals("beta", output, "cat --range did not limit output to the byte range.");
+
+        Files.delete(first);
+        Files.delete(second);
+    }
+
     @Test
     public void testMv() {
         Path originalFile = testDir.resolve("originalFile.txt");
@@ -194,6 +340,437 @@ public class CommandLineInterpreterTest {
         Files.deleteIfExists(outputFile);
     }
 
+    @Test
+    public void testRedirectionForAnyCommand() throws IOException {
+        Files.writeString(testDir.resolve("in.txt"), "from a file\n");
+
+        String output = runLine("help > help.txt");
+        assertEquals("Output redirected to help.txt\n", output, "help output was not redirected.");
+        assertTrue(Files.readString(testDir.resolve("help.txt")).startsWith("Available Commands:"),
+                "help output did not reach the file.");
+
+        assertEquals("Output redirected to piped.txt\n", runLine("cat < in.txt | cat > piped.txt"),
+                "A pipeline did not report where its output went.");
+        assertEquals("from a file\n", Files.readString(testDir.resolve("piped.txt")),
+                "Input and output redirection did not work inside a pipeline.");
+
+        assertEquals("", runLine("cat missing.txt 2> errors.txt"), "The error was not redirected.");
+        assertTrue(Files.readString(testDir.resolve("errors.txt")).startsWith("Error:"), "The error did not reach the file.");
+
+        assertTrue(runLine("cat < missing.txt").startsWith("Error: Could not read input"),
+                "A missing input file was not reported.");
+
+        for (String name : new String[]{"in.txt", "help.txt", "piped.txt", "errors.txt"}) {
+            Files.delete(testDir.resolve(name));
+        }
+    }
+
+    @Test
+    public void testGrep() throws IOException {
+        Path dir = Files.createDirectories(testDir.resolve("grep").resolve("sub"));
+        Files.writeString(dir.getParent().resolve("a.txt"), "apple pie\nbanana\ncherry pie\n");
+        Files.writeString(dir.resolve("b.txt"), "no match\nkey lime pie");
+
+        assertEquals("apple pie\ncherry pie\n", runLine("grep pie grep/a.txt"), "Literal search failed.");
+        assertEquals("1:apple pie\n", runLine("grep -n '^a.*e$' grep/a.txt"), "Regex search with -n failed.");
+        assertEquals("2\n", runLine("grep -c pie grep/a.txt"), "grep -c miscounted.");
+        assertEquals("grep/a.txt:1:apple pie\ngrep/a.txt:3:cherry pie\ngrep/sub/b.txt:2:key lime pie\n",
+                runLine("grep -rn pie grep"), "Recursive search failed.");
+        assertEquals("banana\n", runLine("cat grep/a.txt | grep nan"), "grep did not search piped input.");
+        assertEquals(1, runStatus("grep durian grep/a.txt"), "grep without a match should fail.");
+
+        Files.walk(dir.getParent()).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    @Test
+    public void testGrepLargeFileInChunks() throws IOException {
+        // Larger than one 8 MiB chunk, so the file is searched in parallel pieces.
+        Path file = testDir.resolve("large.txt");
+        StringBuilder content = new StringBuilder();
+        for (int i = 1; i <= 400_000; i++) {
+            content.append(i % 100_000 == 0 ? "needle in line " : "just some hay on line ").append(i).append('\n');
+        }
+        Files.writeString(file, content);
+
+        assertEquals("100000:needle in line 100000\n200000:needle in line 200000\n"
+                        + "300000:needle in line 300000\n400000:needle in line 400000\n",
+                runLine("grep -n needle large.txt"), "Chunked search lost matches or line numbers.");
+        assertEquals("4\n", runLine("grep -c 'needle in line [0-9]+' large.txt"), "Chunked regex search miscounted.");
+
+        Files.delete(file);
+    }
+
+    @Test
+    public void testHeadTailAndWc() throws IOException {
+        Path file = testDir.resolve("lines.txt");
+        StringBuilder content = new StringBuilder();
+        for (int i = 1; i <= 100_000; i++) {
+            content.append("line ").append(i).append('\n');
+        }
+        Files.writeString(file, content);
+
+        assertEquals("line 1\nline 2\nline 3\n", runLine("head -n 3 lines.txt"), "head printed the wrong lines.");
+        assertEquals("line 99999\nline 100000\n", runLine("tail -2 lines.txt"), "tail printed the wrong lines.");
+        assertEquals("line 99998\nline 99999\n", runLine("cat lines.txt | head -n 99999 | tail -n 2"),
+                "head and tail did not work as pipeline stages.");
+        assertEquals(" 100000  200000 1088895 lines.txt\n", runLine("wc lines.txt"), "wc miscounted a file.");
+        assertEquals("100000\n", runLine("cat lines.txt | wc -l"), "wc miscounted piped input.");
+
+        // head stops reading after its lines; the stages writing into it must stop quietly.
+        for (String line : new String[]{"cat lines.txt | head -n 1", "cat < lines.txt | head -n 1",
+                "cat -n lines.txt | head -n 1", "tail -n 50000 lines.txt | head -n 1"}) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ByteArrayOutputStream errors = new ByteArrayOutputStream();
+            int status;
+            try (OutputSink out = OutputSink.of(output); OutputSink err = OutputSink.of(errors)) {
+                status = CommandLineInterpreter.run(new CommandContext(new Session(testDir), null, out, err), line);
+            }
+            assertEquals(1, output.toString().split("\n").length, "'" + line + "' printed more than one line.");
+            assertEquals("", errors.toString(), "'" + line + "' reported an error when head stopped reading.");
+            assertEquals(0, status, "'" + line + "' failed when head stopped reading.");
+        }
+
+        Files.delete(file);
+    }
+
+    @Test
+    public void testWcAcrossChunksAndTailFollow() throws Exception {
+        // Longer than one 16 MiB chunk, with words running across the chunk boundary.
+        Path large = testDir.resolve("words.txt");
+        byte[] bytes = new byte[17 * 1024 * 1024];
+        Arrays.fill(bytes, (byte) 'x');
+        for (int i = 1000; i < bytes.length; i += 1000) bytes[i] = (i % 3000 == 0) ? (byte) '\n' : (byte) ' ';
+        Files.write(large, bytes);
+        long separators = (bytes.length - 1) / 1000;
+        long lines = separators / 3;
+        assertEquals(lines + " " + (separators + 1) + " " + bytes.length + " words.txt\n",
+                runLine("wc words.txt").replaceAll(" +", " ").trim() + "\n", "wc miscounted across chunks.");
+        Files.delete(large);
+
+        Path log = testDir.resolve("follow.log");
+        Files.writeString(log, "old 1\nold 2\n");
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        Thread follower = new Thread(() -> {
+            try (OutputSink out = OutputSink.of(target)) {
+                CommandLineInterpreter.run(new CommandContext(new Session(testDir), null, out, out), "tail -n 1 -f follow.log");
+            }
+        });
+        follower.start();
+        waitFor(target, "old 2\n");
+        Files.writeString(log, "new 3\n", StandardOpenOption.APPEND);
+        waitFor(target, "old 2\nnew 3\n");
+        Files.writeString(log, "after truncation\n");
+        waitFor(target, "old 2\nnew 3\nafter truncation\n");
+        follower.interrupt();
+        follower.join(5000);
+        assertFalse(follower.isAlive(), "tail -f did not stop when interrupted.");
+
+        // At the console, pressing Enter stops it.
+        PipedOutputStream keyboard = new PipedOutputStream();
+        Session console = new Session(testDir);
+        console.setConsole(new PipedInputStream(keyboard));
+        target.reset();
+        Thread foreground = new Thread(() -> {
+            try (OutputSink out = OutputSink.of(target)) {
+                CommandLineInterpreter.run(new CommandContext(console, null, out, out), "tail -n 1 -f follow.log");
+            }
+        });
+        foreground.start();
+        waitFor(target, "after truncation\n");
+        keyboard.write('\n');
+        foreground.join(5000);
+        assertFalse(foreground.isAlive(), "tail -f did not stop when Enter was pressed.");
+        assertEquals(0, console.console().available(), "The key that stopped tail -f was left to be read as a command.");
+
+        Files.delete(log);
+    }
+
+    private static void waitFor(ByteArrayOutputStream target, String expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!target.toString().equals(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(expected, target.toString(), "tail -f did not print what was appended.");
+    }
+
+    @Test
+    public void testBulkFileOperations() throws IOException {
+        Path dir = Files.createDirectory(testDir.resolve("bulk"));
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            names.append(" bulk/f").append(i).append(".tmp");
+        }
+        assertEquals("", runLine("touch -q" + names), "touch -q printed lines or errors.");
+        try (var entries = Files.list(dir)) {
+            assertEquals(5000, entries.count(), "touch did not create every file.");
+        }
+        assertEquals("Directory created: bulk/a\nDirectory created: bulk/b\n", runLine("mkdir bulk/a bulk/b"),
+                "mkdir did not report every directory in order.");
+        assertEquals("Error: 'bulk/a' already exists.\nDirectory created: bulk/c\nError: mkdir failed for 1 of 2 paths.\n",
+                runLine("mkdir bulk/a bulk/c"), "mkdir did not summarize its failures.");
+        assertEquals("", runLine("rm -q bulk/*.tmp"), "rm did not expand the wildcard.");
+        assertTrue(Files.isDirectory(dir.resolve("c")), "A failed path stopped the others.");
+
+        Files.createDirectories(dir.resolve("a").resolve("deep").resolve("er"));
+        for (int i = 0; i < 2000; i++) {
+            Files.createFile(dir.resolve("a").resolve("deep").resolve("x" + i));
+        }
+        assertEquals("Directory removed: bulk/a\n", runLine("rm -r bulk/a"), "rm -r did not remove the tree.");
+        assertEquals("Directory removed: bulk/b\nDirectory removed: bulk/c\n", runLine("rmdir bulk/?"),
+                "rmdir did not expand the wildcard.");
+        Files.createDirectory(dir.resolve("dest"));
+        Files.createFile(dir.resolve("one.txt"));
+        assertEquals("Moved/Renamed 'bulk/one.txt' to 'bulk/dest/one.txt'.\n", runLine("mv bulk/*.txt bulk/dest"),
+                "mv did not move a single match into the directory.");
+        assertEquals("Error: Cannot move 'bulk/dest' into itself.\n", runLine("mv bulk/dest bulk/dest"),
+                "mv moved a directory into itself.");
+        assertEquals("Directory removed: bulk/dest\n", runLine("rm -r bulk/dest"), "rm -r did not remove the tree.");
+        try (var entries = Files.list(dir)) {
+            assertEquals(0, entries.count(), "Entries were left behind.");
+        }
+
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testCp() throws IOException {
+        Path dir = Files.createDirectory(testDir.resolve("copies"));
+        Path tree = Files.createDirectories(dir.resolve("src").resolve("sub"));
+        Files.writeString(tree.getParent().resolve("a.txt"), "alpha");
+        Files.writeString(tree.resolve("b.txt"), "beta");
+        // Sparse and larger than one range: data between holes, and a hole at the end.
+        Path sparse = tree.resolve("sparse.bin");
+        try (var channel = java.nio.channels.FileChannel.open(sparse, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap("start".getBytes()), 0);
+            channel.write(ByteBuffer.wrap("middle".getBytes()), 70L * 1024 * 1024);
+            channel.write(ByteBuffer.wrap(new byte[]{0}), 150L * 1024 * 1024 - 1);
+        }
+
+        assertTrue(runLine("cp copies/src/a.txt copies/a-copy.txt").startsWith("Copied 1 file, 5 B in "),
+                "cp did not report what it copied.");
+        assertEquals("alpha", Files.readString(dir.resolve("a-copy.txt")), "cp did not copy the file.");
+        assertEquals("Error: 'copies/src' is a directory (use cp -r).\n", runLine("cp copies/src copies/dst"),
+                "cp copied a directory without -r.");
+        assertEquals("", runLine("cp -rq copies/src copies/dst"), "cp -q printed something.");
+        Path copy = dir.resolve("dst").resolve("sub");
+        assertEquals("beta", Files.readString(copy.resolve("b.txt")), "cp -r did not copy the tree.");
+        assertEquals(Files.size(sparse), Files.size(copy.resolve("sparse.bin")), "The sparse copy has the wrong size.");
+        assertEquals(-1, Files.mismatch(sparse, copy.resolve("sparse.bin")), "The sparse copy differs.");
+
+        Files.walk(dir).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    @Test
+    public void testGlobExpansion() throws IOException {
+        Path dir = Files.createDirectories(testDir.resolve("globs").resolve("deep").resolve("er"));
+        Path globs = dir.getParent().getParent();
+        Files.writeString(globs.resolve("part-2"), "two\n");
+        Files.writeString(globs.resolve("part-1"), "one\n");
+        Files.writeString(globs.resolve(".part-0"), "hidden\n");
+        Files.writeString(globs.resolve("a*b"), "star\n");
+        Files.writeString(dir.getParent().resolve("x.log"), "x\n");
+        Files.writeString(dir.resolve("y.log"), "y\n");
+
+        assertEquals("one\ntwo\n", runLine("cat globs/part-*"), "A wildcard did not expand in sorted order.");
+        assertEquals("one\n", runLine("cat globs/part-[1]"), "A bracket expression did not expand.");
+        assertEquals("hidden\none\ntwo\n", runLine("cat globs/.part-? globs/part-?"), "Hidden files were not matched by '.'.");
+        assertEquals("star\n", runLine("cat 'globs/a*b'"), "A quoted wildcard was expanded.");
+        assertEquals("star\n", runLine("cat globs/\"a*\"b"), "A partly quoted pattern matched too much.");
+        assertEquals("globs/deep/er/y.log:y\nglobs/deep/x.log:x\n", runLine("grep -n . globs/**/*.log").replace(":1:", ":"),
+                "'**' did not match across directories.");
+        assertTrue(runLine("rm globs/none-*").startsWith("Error: File 'globs/none-*' not found."),
+                "A pattern without matches was not kept as it is.");
+        assertEquals("", runLine("rm -rq globs/*"), "rm did not take the expanded names.");
+        assertEquals(List.of(".part-0"), Files.list(globs).map(p -> p.getFileName().toString()).toList(),
+                "The wildcard removed a hidden file or missed one.");
+
+        Files.walk(globs).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    @Test
+    public void testFindAndDu() throws IOException {
+        Path sub = Files.createDirectories(testDir.resolve("walk").resolve("sub").resolve("deeper"));
+        Path root = sub.getParent().getParent();
+        Files.writeString(root.resolve("a.txt"), "a".repeat(2000));
+        Files.writeString(sub.getParent().resolve("b.log"), "b".repeat(3000));
+        Files.writeString(sub.resolve("c.txt"), "c");
+        Files.setLastModifiedTime(sub.resolve("c.txt"), FileTime.fromMillis(System.currentTimeMillis() - 10L * 86_400_000));
+
+        assertEquals("walk\nwalk/a.txt\nwalk/sub\nwalk/sub/b.log\nwalk/sub/deeper\nwalk/sub/deeper/c.txt\n",
+                runLine("find walk"), "find did not list the tree in order.");
+        assertEquals("walk/a.txt\nwalk/sub/deeper/c.txt\n", runLine("find walk -name '*.txt' -type f"),
+                "find -name -type matched the wrong files.");
+        assertEquals("walk/sub/b.log\n", runLine("find walk -type f -size +4"), "find -size compared the wrong units.");
+        assertEquals("walk/sub/deeper/c.txt\n", runLine("find walk -type f -mtime +7"), "find -mtime matched the wrong files.");
+        assertEquals("Error: Unknown test '-foo' for find.\n", runLine("find walk -foo x"), "find took an unknown test.");
+
+        // Directories changed just now are not cached, so age them to let du remember them.
+        long old = System.currentTimeMillis() - 60_000;
+        for (Path directory : List.of(sub, sub.getParent(), root)) {
+            Files.setLastModifiedTime(directory, FileTime.fromMillis(old));
+        }
+        assertEquals("1\twalk/sub/deeper\n3\twalk/sub\n5\twalk\n", runLine("du walk"), "du printed the wrong sizes.");
+        // A file growing in place leaves its directory's time alone: the cached total stands.
+        Files.writeString(root.resolve("a.txt"), "a".repeat(5000));
+        Files.setLastModifiedTime(root, FileTime.fromMillis(old));
+        assertEquals("5\twalk\n", runLine("du -s walk"), "du did not use its cache.");
+        assertEquals("8\twalk\n", runLine("du -s --no-cache walk"), "du --no-cache did not read the tree again.");
+        Files.writeString(sub.resolve("d.txt"), "d".repeat(4096));
+        assertEquals("5\twalk/sub/deeper\n7\twalk/sub\n12\twalk\n", runLine("du walk"),
+                "du missed a file added to a cached directory.");
+        assertEquals("11.8 KB\twalk\n", runLine("du -sh walk"), "du -h printed the wrong size.");
+
+        Files.walk(root).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    @Test
+    public void testStats() throws IOException {
+        for (long value : new long[]{0, 31, 32, 33, 1000, 123_456_789, Long.MAX_VALUE}) {
+            int index = Metrics.Histogram.index(value);
+            assertTrue(Metrics.Histogram.highestValue(index) >= value
+                            && (index == 0 || Metrics.Histogram.highestValue(index - 1) < value),
+                    "Value " + value + " fell into the wrong histogram bucket.");
+        }
+
+        Files.writeString(testDir.resolve("stats.txt"), "one\ntwo\n");
+        runLine("stats reset");
+        runLine("cat stats.txt");
+        runLine("cat stats.txt | grep two");
+        runLine("cat missing.txt");
+        String[] lines = runLine("stats").split("\n");
+        assertTrue(lines[0].startsWith("COMMAND"), "stats did not print a header.");
+        assertTrue(Arrays.stream(lines).anyMatch(line -> line.matches("cat\\s+3\\s+1\\s.*")),
+                "stats did not count the runs and failures of cat.");
+        assertTrue(Arrays.stream(lines).anyMatch(line -> line.matches("grep\\s+1\\s+0\\s.*\\s8 B\\s+4 B\\s.*")),
+                "stats did not count the bytes grep read and wrote.");
+        assertTrue(Arrays.stream(lines).anyMatch(line -> line.startsWith(Metrics.PIPELINE)), "stats left out the pipeline.");
+
+        Path dump = testDir.resolve("stats.json");
+        Metrics.dump(dump);
+        String json = Files.readString(dump);
+        assertTrue(json.startsWith("{\"time\":") && json.contains("{\"name\":\"cat\",\"runs\":3,\"errors\":1,")
+                && json.endsWith("]}\n"), "The stats dump is not the expected JSON line: " + json);
+
+        // Names are escaped in the dump, and past the limit new names share one entry.
+        Metrics.begin("odd \"name\\").end(false);
+        for (int i = 0; i < Metrics.MAX_RECORDERS; i++) {
+            Metrics.begin("program-" + i).end(false);
+        }
+        Files.delete(dump);
+        Metrics.dump(dump);
+        json = Files.readString(dump);
+        assertTrue(json.contains("{\"name\":\"odd \\\"name\\\\\",\"runs\":1,"), "A name was not escaped in the dump.");
+        assertTrue(json.contains("{\"name\":\"" + Metrics.OTHER + "\",\"runs\":"), "New names past the limit were not pooled.");
+        // The header, the names within the limit and OTHER.
+        assertTrue(runLine("stats").split("\n").length <= Metrics.MAX_RECORDERS + 2, "stats kept a line for every name.");
+        runLine("stats reset");
+
+        Files.delete(dump);
+        Files.delete(testDir.resolve("stats.txt"));
+    }
+
+    @Test
+    public void testCommandListsAndJobs() throws IOException {
+        Path dir = Files.createDirectory(testDir.resolve("lists"));
+        Files.writeString(dir.resolve("a.txt"), "alpha\n");
+
+        assertEquals(0, runStatus("touch lists/one ; rm lists/none && touch lists/two || touch lists/three"),
+                "The status was not the last pipeline's.");
+        assertTrue(Files.exists(dir.resolve("one")) && !Files.exists(dir.resolve("two")) && Files.exists(dir.resolve("three")),
+                "'&&' or '||' ran the wrong commands.");
+        assertEquals(1, runStatus("touch lists/four && rm lists/none"), "A failing '&&' list did not fail.");
+        assertEquals("Error: Invalid syntax near '&&'.\n", runLine("ls && && ls"), "A malformed list was accepted.");
+
+        assertEquals("[1] cat lists/a.txt\nalpha\n", runLine("cat lists/a.txt & wait"),
+                "A background job did not print its number and output.");
+        String jobs = runLine("rm lists/none & cat lists/a.txt | grep alpha & fg 1 ; jobs ; wait");
+        // Job 1 may report its error before job 2 is announced.
+        assertTrue(jobs.startsWith("[1] rm lists/none\n") && jobs.contains("\n[2] cat lists/a.txt | grep alpha\n"),
+                "The jobs were not numbered: " + jobs);
+        assertTrue(jobs.contains("\nrm lists/none\n") && jobs.matches("(?s).*\\[2] (Running|Done)\tcat lists/a.txt \\| grep alpha\n.*")
+                && jobs.contains("alpha\n") && jobs.contains("not found"), "fg or jobs did not report the jobs: " + jobs);
+        assertEquals(1, runStatus("rm lists/none & fg"), "fg did not take the status of its job.");
+        assertEquals("[1] cd lists && exit\nExiting CLI. Goodbye!\n" + testDir + "\n", runLine("cd lists && exit & wait ; pwd"),
+                "A background job changed the foreground session.");
+
+        assertEquals("alpha\nError: File 'lists/none' not found.\nOutput redirected to lists/b.txt\nalpha\n",
+                runLine("parallel -j 2 'cat lists/a.txt' 'rm lists/none' 'cat lists/a.txt > lists/b.txt' 'grep -c . lists/a.txt'")
+                        .replace("1\n", "alpha\n"),
+                "parallel did not print each command's output in order.");
+        assertEquals(1, runStatus("parallel 'touch lists/p' 'rm lists/none'"), "parallel did not fail with its command.");
+
+        Files.walk(dir).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    @Test
+    public void testExternalPrograms() throws IOException {
+        Assumptions.assumeTrue(Files.isExecutable(Paths.get("/bin/sh")), "Needs a POSIX shell and tools.");
+        Path dir = Files.createDirectory(testDir.resolve("programs"));
+        Files.writeString(dir.resolve("words.txt"), "pear\napple\nfig\n");
+
+        assertEquals("hello world\n", runLine("echo hello world"), "A program from PATH did not run.");
+        assertEquals(1, runStatus("false"), "A failing program did not fail the command.");
+        assertEquals("apple\nfig\npear\n", runLine("sort programs/words.txt"), "A program did not get its arguments.");
+        assertEquals("APPLE\nFIG\nPEAR\n", runLine("cat programs/words.txt | sort | tr a-z A-Z"),
+                "A mixed pipeline did not stream through the programs.");
+        assertEquals("APPLE\nFIG\nPEAR\n", runLine("sort < programs/words.txt | uniq | tr a-z A-Z"),
+                "A pipeline of programs did not take its input file.");
+        assertEquals("Output redirected to programs/first.txt\n",
+                runLine("sort -r < programs/words.txt | sed -n 1p > programs/first.txt"),
+                "A pipeline of programs did not report where its output went.");
+        assertEquals("pear\n", Files.readString(dir.resolve("first.txt")), "A pipeline of programs did not write its output file.");
+        assertEquals("fig\n", runLine("grep -n g programs/words.txt | sed s/.*://"), "A program did not read from a builtin.");
+        assertTrue(runLine("hash").contains("sort\t"), "hash did not list a program that was found.");
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        try (OutputSink out = OutputSink.of(target)) {
+            CommandContext terminal = new CommandContext(new Session(testDir), null, out, out).atTerminal();
+            assertTrue(terminal.forNextCommand().isAtTerminal() && !terminal.withStdout(out).isAtTerminal(),
+                    "A redirected command was taken to be on the terminal.");
+            assertEquals(1, CommandLineInterpreter.run(terminal, "sh -c 'exit 3'"),
+                    "A program on the terminal did not fail the command.");
+        }
+        assertEquals("", target.toString(), "A program on the terminal wrote through the command's output.");
+        assertEquals("Error: Unknown command. Type 'help' for a list of commands.\n", runLine("no-such-program-here"),
+                "An unknown name did not report an unknown command.");
+
+        Files.walk(dir).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    @Test
+    public void testChecksums() throws IOException {
+        Path dir = Files.createDirectory(testDir.resolve("sums"));
+        Files.writeString(dir.resolve("small.txt"), "hello\n");
+        // Large enough to be hashed through a mapping rather than a buffer.
+        Files.writeString(dir.resolve("large.bin"), "0123456789abcdef".repeat(100_000));
+        String small = "5891b5b522d5df086d0ff0b110fbd9d21bb4fc7163af34d08286a2e846f6be03";
+        String large = "39ec05ee6a2d25b6c775d195d1ce3e75aa64dd11c76506827bc414d90b6a6184";
+
+        assertEquals(small + "  sums/small.txt\n" + large + "  sums/large.bin\n",
+                runLine("sha256sum sums/small.txt sums/large.bin"), "sha256sum printed the wrong digests.");
+        assertEquals("b1946ac92492d2347c6235b4d2611184  -\n", runLine("cat sums/small.txt | md5sum"),
+                "md5sum did not hash its input.");
+        assertEquals("Error: File 'sums/none' not found.\n", runLine("sha256sum sums/none"),
+                "sha256sum did not report a missing file.");
+
+        Files.writeString(dir.resolve("SUMS"), small + "  sums/small.txt\n" + large + " *sums/large.bin\n");
+        assertEquals("sums/small.txt: OK\nsums/large.bin: OK\n", runLine("sha256sum -c sums/SUMS"),
+                "sha256sum -c did not pass matching files.");
+        Files.writeString(dir.resolve("small.txt"), "changed\n");
+        assertEquals("sums/small.txt: FAILED\nError: 1 of 2 computed checksums did NOT match.\n",
+                runLine("sha256sum -c --quiet sums/SUMS"), "sha256sum -c did not catch a changed file.");
+        assertEquals(1, runStatus("sha256sum -c sums/SUMS"), "A failed check did not fail the command.");
+        assertEquals("Error: 'sha256sum -c' requires a file name or piped input.\n", runLine("sha256sum -c sums/SUMS -"),
+                "sha256sum -c checked files before finding it had no input.");
+
+        Files.walk(dir).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    private static int runStatus(String line) {
+        try (OutputSink out = OutputSink.of(new ByteArrayOutputStream())) {
+            return CommandLineInterpreter.run(new CommandContext(new Session(testDir), null, out, out), line);
+        }
+    }
+
     @Test
     public void testPipe() throws IOException {
         Path testFile = testDir.resolve("pipeTest.txt");
@@ -205,6 +782,174 @@ public class CommandLineInterpreterTest {
         Files.deleteIfExists(testFile);
     }
 
+    @Test
+    public void testMultiStagePipe() throws IOException {
+        Path bigFile = testDir.resolve("bigPipe.txt");
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 50_000; i++) {
+            content.append("line ").append(i).append('\n');
+        }
+        Files.writeString(bigFile, content);
+
+        String output = captureOutput(() -> CommandLineInterpreter.handlePipe("cat bigPipe.txt | cat | cat"));
+        assertEquals(content.toString(), output.replace(System.lineSeparator(), "\n"),
+                "Data larger than the pipe buffer was not streamed through every stage intact.");
+
+        Files.deleteIfExists(bigFile);
+    }
+
+    @Test
+    public void testSessionsRunInParallel() throws Exception {
+        Path dirA = Files.createDirectory(testDir.resolve("sessionA"));
+        Path dirB = Files.createDirectory(testDir.resolve("sessionB"));
+        ByteArrayOutputStream outA = new ByteArrayOutputStream();
+        ByteArrayOutputStream outB = new ByteArrayOutputStream();
+
+        Thread a = new Thread(() -> runInSession(dirA, outA));
+        Thread b = new Thread(() -> runInSession(dirB, outB));
+        a.start();
+        b.start();
+        a.join();
+        b.join();
+
+        assertEquals(dirA.resolve("inner").toString(), outA.toString().trim(), "Session A saw another session's directory.");
+        assertEquals(dirB.resolve("inner").toString(), outB.toString().trim(), "Session B saw another session's directory.");
+        assertEquals(testDir.toAbsolutePath(), CommandLineInterpreter.getCurrentDirectory(),
+                "A separate session changed the console's directory.");
+    }
+
+    private static void runInSession(Path start, ByteArrayOutputStream target) {
+        try (OutputSink out = OutputSink.of(target)) {
+            CommandContext ctx = new CommandContext(new Session(start), null, out, out);
+            CommandLineInterpreter.run(ctx, "mkdir inner");
+            CommandLineInterpreter.run(ctx, "cd inner");
+            out.flush();
+            target.reset();
+            CommandLineInterpreter.run(ctx, "pwd");
+        }
+    }
+
+    @Test
+    public void testServerSessions() throws Exception {
+        Path socket = testDir.resolve("cli.sock");
+        Thread server = new Thread(() -> {
+            try {
+                InterpreterServer.serve(socket, testDir);
+            } catch (IOException ignored) {
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+        Files.createDirectory(testDir.resolve("serverDir"));
+        try (SocketChannel first = connect(socket);
+             SocketChannel second = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            first.write(ByteBuffer.wrap("cd serverDir\npwd\nexit\n".getBytes()));
+            second.write(ByteBuffer.wrap("pwd\nexit\n".getBytes()));
+
+            String firstOutput = new String(Channels.newInputStream(first).readAllBytes());
+            String secondOutput = new String(Channels.newInputStream(second).readAllBytes());
+            assertTrue(firstOutput.startsWith(testDir.resolve("serverDir").toString()), "cd was not applied to the session.");
+            assertTrue(firstOutput.contains("Exiting CLI. Goodbye!"), "Session did not end on exit.");
+            assertTrue(secondOutput.startsWith(testDir.toString() + System.lineSeparator()),
+                    "One session's cd leaked into another.");
+        }
+
+        // A second server must neither take over nor unlink the socket of the running one.
+        assertThrows(IOException.class, () -> InterpreterServer.serve(socket, testDir),
+                "A second server started on a live socket.");
+        try (SocketChannel third = connect(socket)) {
+            third.write(ByteBuffer.wrap("pwd\nexit\n".getBytes()));
+            assertTrue(new String(Channels.newInputStream(third).readAllBytes()).startsWith(testDir.toString()),
+                    "The running server stopped answering.");
+        }
+        // Nor may it delete a file that isn't a socket.
+        Path notes = testDir.resolve("notes.txt");
+        Files.writeString(notes, "keep me\n");
+        assertThrows(IOException.class, () -> InterpreterServer.serve(notes, testDir),
+                "A server started on a regular file.");
+        assertEquals("keep me\n", Files.readString(notes), "Starting a server deleted a regular file.");
+
+        Files.delete(notes);
+        Files.deleteIfExists(testDir.resolve("serverDir"));
+    }
+
+    /** Connects once the server listens: the socket file shows up a moment before it does. */
+    private static SocketChannel connect(Path socket) throws IOException, InterruptedException {
+        for (int i = 0; ; i++) {
+            try {
+                return SocketChannel.open(UnixDomainSocketAddress.of(socket));
+            } catch (IOException e) {
+                if (i == 100) throw e;
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    @Test
+    public void testBatchErrorPolicy() {
+        String script = "# comment\n\ncat missing.txt\npwd\n";
+        int[] status = new int[1];
+
+        String output = captureOutput(() ->
+                status[0] = CommandLineInterpreter.runBatch(new BufferedReader(new StringReader(script)), false));
+        assertEquals(1, status[0], "A failing command should make the batch fail.");
+        assertTrue(output.contains(testDir.toString()), "Batch did not continue after the failing command.");
+
+        output = captureOutput(() ->
+                status[0] = CommandLineInterpreter.runBatch(new BufferedReader(new StringReader(script)), true));
+        assertEquals(1, status[0], "A failing command should make the batch fail.");
+        assertFalse(output.contains(testDir.toString()), "Batch did not stop at the failing command.");
+
+        output = captureOutput(() ->
+                status[0] = CommandLineInterpreter.runBatch(new BufferedReader(new StringReader("pwd\npwd\n")), true));
+        assertEquals(0, status[0], "A clean batch should succeed.");
+    }
+
+    @Test
+    public void testBatchWaitsForJobs() throws IOException {
+        Assumptions.assumeTrue(Files.isExecutable(Paths.get("/bin/sh")), "Needs a POSIX shell and tools.");
+        Files.writeString(testDir.resolve("batchJob.txt"), "from the job\n");
+        String script = "pwd\nsleep 0.3 && cat batchJob.txt && cat batchJob.txt > batchJob.copy &\n";
+        int[] status = new int[1];
+
+        String output = captureOutput(() ->
+                status[0] = CommandLineInterpreter.runBatch(new BufferedReader(new StringReader(script)), true));
+        assertEquals(0, status[0], "A batch ending in a background job should succeed.");
+        assertTrue(output.contains("\nfrom the job\n"), "The job's output was lost when the batch ended: " + output);
+        assertEquals("from the job\n", Files.readString(testDir.resolve("batchJob.copy")),
+                "The batch ended before its background job did.");
+
+        Files.delete(testDir.resolve("batchJob.txt"));
+        Files.delete(testDir.resolve("batchJob.copy"));
+    }
+
+    @Test
+    public void testQuotingAndOperators() throws IOException {
+        Path spaced = Files.writeString(testDir.resolve("my file.txt"), "spaced\n");
+        Path angled = Files.writeString(testDir.resolve("a>b.txt"), "angled\n");
+
+        assertEquals("spaced\n", runLine("cat \"my file.txt\""), "Double quotes did not keep the space.");
+        assertEquals("spaced\n", runLine("cat my\\ file.txt"), "Backslash did not escape the space.");
+        assertEquals("angled\n", runLine("cat 'a>b.txt'"), "A quoted '>' was treated as redirection.");
+
+        runLine("cat 'my file.txt'>copy.txt");
+        assertEquals("spaced\n", Files.readString(testDir.resolve("copy.txt")), "'>' without spaces did not redirect.");
+
+        assertTrue(runLine("cat \"my file.txt").contains("Unterminated double quote"), "Open quote was not reported.");
+
+        Files.delete(spaced);
+        Files.delete(angled);
+        Files.delete(testDir.resolve("copy.txt"));
+    }
+
+    private static String runLine(String line) {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        try (OutputSink out = OutputSink.of(target)) {
+            CommandLineInterpreter.run(new CommandContext(new Session(testDir), null, out, out), line);
+        }
+        return target.toString();
+    }
+
     @AfterAll
     public static void tearDown() throws Exception {
         Files.walk(testDir)
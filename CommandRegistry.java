@@ -0,0 +1,46 @@
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Maps command names to their implementations. Names are registered in lower case and
+ * interned, so a lookup for a literal name is a hash probe plus an identity check; a
+ * mixed-case name costs one extra lower-casing, and only on a miss.
+ */
+final class CommandRegistry {
+    private final Map<String, Entry> commands = new HashMap<>();
+
+    /** A registered command under its canonical, interned name. */
+    static final class Entry {
+        final String name;
+        final Command command;
+
+        Entry(String name, Command command) {
+            this.name = name;
+            this.command = command;
+        }
+    }
+
+    void register(String name, Command command) {
+        String canonical = name.toLowerCase(Locale.ROOT).intern();
+        commands.put(canonical, new Entry(canonical, command));
+    }
+
+    /** Returns the command with that name, or null if there is none. */
+    Command lookup(String name) {
+        Entry entry = entry(name);
+        return entry != null ? entry.command : null;
+    }
+
+    /** Returns the command with that name together with its canonical name, or null if there is none. */
+    Entry entry(String name) {
+        Entry entry = commands.get(name);
+        if (entry == null) {
+            String lowerCase = name.toLowerCase(Locale.ROOT);
+            if (!lowerCase.equals(name)) {
+                entry = commands.get(lowerCase);
+            }
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,299 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Copies files and directory trees, for 'cp' and for 'mv' between file systems.
+ * <p>
+ * File data is moved with {@link FileChannel#transferTo}, so the kernel copies it without
+ * it passing through the heap. Files larger than one range are copied a range at a time
+ * by several workers, each writing through a channel of its own. Files of a megabyte or
+ * more are checked for holes: the source is mapped and every block that reads as all
+ * zeros is skipped instead of written, which leaves a hole in the copy. Checking a block
+ * of data usually stops at its first bytes, so this costs next to nothing on files
+ * without holes. Directory trees are walked in parallel, a task per directory, with small
+ * files copied in batches.
+ * <p>
+ * One Copier is one copy operation: it counts the files and bytes copied so far, for
+ * progress and throughput, and collects the paths that could not be copied.
+ */
+final class Copier {
+    // Bytes of a file copied by one task; larger files are copied in parallel ranges.
+    private static final long RANGE_SIZE = 64L * 1024 * 1024;
+    // Largest single transfer, so progress moves while a range is copied.
+    private static final long TRANSFER_SIZE = 8L * 1024 * 1024;
+    // Smaller files are copied without looking for holes.
+    private static final long SPARSE_THRESHOLD = 1024 * 1024;
+    // A run of zeros is left as a hole when it covers a whole block of this size.
+    private static final int HOLE_BLOCK_SIZE = 64 * 1024;
+    // Small files copied by one task of a tree copy.
+    private static final int FILES_PER_TASK = 64;
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Queue<Path> failures = new ConcurrentLinkedQueue<>();
+    private final long started = System.nanoTime();
+
+    /**
+     * Copies each source to the target at the same index, directories with everything in
+     * them, and waits until all are done. While it waits, a line of progress is passed to
+     * {@code progress} (if not null) every second.
+     */
+    void copy(List<Path> sources, List<Path> targets, Consumer<String> progress) throws InterruptedException {
+        ForkJoinTask<Void> task = Pools.IO.submit(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<RecursiveAction> copies = new ArrayList<>();
+                for (int i = 0; i < sources.size(); i++) {
+                    copies.add(Files.isDirectory(sources.get(i), LinkOption.NOFOLLOW_LINKS)
+                            ? new TreeCopy(sources.get(i), targets.get(i))
+                            : new FileBatch(List.of(sources.get(i)), List.of(targets.get(i))));
+                }
+                invokeAll(copies);
+            }
+        });
+        while (true) {
+            try {
+                task.get(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                if (progress != null) progress.accept("Copying: " + describe());
+            } catch (ExecutionException e) {
+                // The tasks record their failures rather than throw; anything else is a bug.
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                task.cancel(true);
+                throw e;
+            }
+        }
+    }
+
+    /** The paths that could not be copied, in no particular order. */
+    Queue<Path> failures() {
+        return failures;
+    }
+
+    /** How much was copied and how fast, e.g. "3 files, 1.2 GB in 0.8 s (1.5 GB/s)". */
+    String describe() {
+        long copied = bytes.sum();
+        double seconds = Math.max((System.nanoTime() - started) / 1e9, 1e-3);
+        long count = files.sum();
+        return count + (count == 1 ? " file, " : " files, ") + formatBytes(copied)
+                + String.format(Locale.ROOT, " in %.1f s (%s/s)", seconds, formatBytes((long) (copied / seconds)));
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        String[] units = {"KB", "MB", "GB", "TB"};
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format(Locale.ROOT, "%.1f %s", value, units[unit]);
+    }
+
+    /**
+     * Copies a directory: creates the target, then copies the subdirectories in tasks of
+     * their own and the files in batches, all in parallel.
+     */
+    private final class TreeCopy extends RecursiveAction {
+        private final Path source;
+        private final Path target;
+
+        TreeCopy(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                Files.createDirectory(target);
+            } catch (FileAlreadyExistsException e) {
+                if (!Files.isDirectory(target)) {
+                    failures.add(source);
+                    return;
+                }
+            } catch (IOException e) {
+                failures.add(source);
+                return;
+            }
+            List<RecursiveAction> tasks = new ArrayList<>();
+            List<Path> sources = new ArrayList<>();
+            List<Path> targets = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(source)) {
+                for (Path entry : entries) {
+                    Path copy = target.resolve(entry.getFileName().toString());
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        tasks.add(new TreeCopy(entry, copy));
+                        continue;
+                    }
+                    sources.add(entry);
+                    targets.add(copy);
+                    if (sources.size() == FILES_PER_TASK) {
+                        tasks.add(new FileBatch(sources, targets));
+                        sources = new ArrayList<>();
+                        targets = new ArrayList<>();
+                    }
+                }
+            } catch (IOException e) {
+                failures.add(source);
+            }
+            if (!sources.isEmpty()) tasks.add(new FileBatch(sources, targets));
+            invokeAll(tasks);
+            Ls.cache().invalidate(target);
+        }
+    }
+
+    /** Copies a few files, or one large one in ranges. Symbolic links are copied as links. */
+    private final class FileBatch extends RecursiveAction {
+        private final List<Path> sources;
+        private final List<Path> targets;
+
+        FileBatch(List<Path> sources, List<Path> targets) {
+            this.sources = sources;
+            this.targets = targets;
+        }
+
+        @Override
+        protected void compute() {
+            for (int i = 0; i < sources.size(); i++) {
+                Path source = sources.get(i);
+                try {
+                    if (Files.isSymbolicLink(source)) {
+                        Files.deleteIfExists(targets.get(i));
+                        Files.createSymbolicLink(targets.get(i), Files.readSymbolicLink(source));
+                    } else {
+                        copyFile(source, targets.get(i));
+                    }
+                    files.increment();
+                } catch (IOException | UnsupportedOperationException e) {
+                    failures.add(source);
+                }
+            }
+        }
+    }
+
+    private void copyFile(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            if (size <= RANGE_SIZE) {
+                copyRange(in, out, 0, size);
+            } else {
+                List<RangeCopy> ranges = new ArrayList<>();
+                for (long start = 0; start < size; start += RANGE_SIZE) {
+                    ranges.add(new RangeCopy(in, target, start, Math.min(size, start + RANGE_SIZE)));
+                }
+                ForkJoinTask.invokeAll(ranges);
+                for (RangeCopy range : ranges) {
+                    if (range.failure != null) throw range.failure;
+                }
+            }
+            // A hole at the end was never written, so the copy is still short of it.
+            if (out.size() < size) {
+                out.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            }
+        }
+        try {
+            Files.setPosixFilePermissions(target, Files.getPosixFilePermissions(source));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system: the copy keeps its default permissions.
+        }
+    }
+
+    /** Copies one range of a large file through a channel of its own, since writes go to a channel's position. */
+    private final class RangeCopy extends RecursiveAction {
+        private final FileChannel in;
+        private final Path target;
+        private final long start;
+        private final long end;
+        IOException failure;
+
+        RangeCopy(FileChannel in, Path target, long start, long end) {
+            this.in = in;
+            this.target = target;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                copyRange(in, out, start, end);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    /** Copies bytes [start, end) of a file to the same place in another, leaving out blocks of zeros. */
+    private void copyRange(FileChannel in, FileChannel out, long start, long end) throws IOException {
+        if (end - start < SPARSE_THRESHOLD) {
+            transfer(in, out, start, end);
+            return;
+        }
+        ByteBuffer data = in.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        int length = data.limit();
+        int dataStart = -1;
+        for (int block = 0; block < length; block += HOLE_BLOCK_SIZE) {
+            int blockEnd = Math.min(length, block + HOLE_BLOCK_SIZE);
+            boolean zeros = isZeros(data, block, blockEnd);
+            if (!zeros && dataStart < 0) {
+                dataStart = block;
+            } else if (zeros) {
+                if (dataStart >= 0) {
+                    transfer(in, out, start + dataStart, start + block);
+                    dataStart = -1;
+                }
+                bytes.add(blockEnd - block);
+            }
+        }
+        if (dataStart >= 0) transfer(in, out, start + dataStart, end);
+    }
+
+    private void transfer(FileChannel in, FileChannel out, long start, long end) throws IOException {
+        out.position(start);
+        long position = start;
+        while (position < end) {
+            long copied = in.transferTo(position, Math.min(TRANSFER_SIZE, end - position), out);
+            if (copied <= 0) throw new IOException("The file was truncated while it was copied.");
+            position += copied;
+            bytes.add(copied);
+        }
+    }
+
+    /** Whether a block is all zeros. A block of data almost always shows it in its first bytes. */
+    private static boolean isZeros(ByteBuffer data, int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            if (data.getLong(i) != 0) return false;
+        }
+        for (; i < to; i++) {
+            if (data.get(i) != 0) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Snapshots of recently listed directories, so running 'ls' on the same directory again
+ * doesn't enumerate and stat it from disk again.
+ * <p>
+ * Snapshots are kept in least recently used order and evicted past a bound on the total
+ * number of entries and their estimated size. Every cached directory is registered with
+ * a {@link WatchService}, and any event on it (a file created, deleted or modified, by
+ * this process or another) drops its snapshot. The builtins that change the file system
+ * also invalidate the directories they touch directly, since watch events are delivered
+ * asynchronously and a session's next command must never see a stale listing. For the
+ * same reason a snapshot is only used while the directory's modification time is
+ * unchanged, so entries created or removed by another process are never missed.
+ * <p>
+ * A snapshot only replaces a directory read if it was taken with at least the
+ * attributes the read needs: a names-only snapshot can't serve 'ls -l'.
+ */
+final class DirectoryCache {
+    /** How much of each entry a snapshot holds: names, basic attributes, or everything 'ls -l' shows. */
+    static final int NAMES = 0;
+    static final int BASIC = 1;
+    static final int FULL = 2;
+
+    // Larger directories are streamed from disk every time rather than cached.
+    static final int MAX_SNAPSHOT_ENTRIES = 100_000;
+
+    private final long maxEntries;
+    private final long maxBytes;
+    private volatile boolean enabled = true;
+
+    // Guarded by this.
+    private final LinkedHashMap<Path, Snapshot> snapshots = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Path, Watch> watches = new HashMap<>();
+    private long entries;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    private WatchService watchService;
+    private boolean watchFailed;
+
+    DirectoryCache(long maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    static final class Snapshot {
+        final DirectoryEntry[] entries;
+        final int level;
+        final FileTime modified;
+        final long bytes;
+
+        Snapshot(DirectoryEntry[] entries, int level, FileTime modified) {
+            this.entries = entries;
+            this.level = level;
+            this.modified = modified;
+            long size = 0;
+            for (DirectoryEntry entry : entries) {
+                size += estimateBytes(entry);
+            }
+            this.bytes = size;
+        }
+    }
+
+    /**
+     * A directory being watched. Handed out before the directory is read and checked
+     * when the result is stored, so a change during the read keeps the stale result out.
+     */
+    static final class Watch {
+        private final WatchKey key;
+
+        private Watch(WatchKey key) {
+            this.key = key;
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) clear();
+    }
+
+    /**
+     * The snapshot of a directory with at least the given level, or null. A snapshot is
+     * only returned while the directory's modification time is the one it was taken at,
+     * which catches entries added or removed before the watch event arrives.
+     */
+    Snapshot get(Path path, int level) {
+        Path directory = key(path);
+        Snapshot snapshot;
+        synchronized (this) {
+            snapshot = snapshots.get(directory);
+        }
+        if (snapshot != null && snapshot.level >= level && modified(directory).equals(snapshot.modified)) {
+            synchronized (this) {
+                hits++;
+            }
+            return snapshot;
+        }
+        synchronized (this) {
+            misses++;
+        }
+        return null;
+    }
+
+    /** The time to pass to {@link #put}, read before the directory itself. */
+    static FileTime modified(Path directory) {
+        try {
+            return Files.getLastModifiedTime(directory);
+        } catch (IOException e) {
+            return FileTime.fromMillis(-1);
+        }
+    }
+
+    /**
+     * Starts watching a directory that is about to be read, or returns null if it can't
+     * be watched and so must not be cached.
+     */
+    synchronized Watch watch(Path path) {
+        Path directory = key(path);
+        Watch watch = watches.get(directory);
+        if (watch != null) return watch;
+        WatchService service = watchService();
+        if (service == null) return null;
+        try {
+            watch = new Watch(directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+        } catch (IOException | UnsupportedOperationException e) {
+            // Out of watches, or a file system that can't be watched: list it without caching.
+            return null;
+        }
+        watches.put(directory, watch);
+        return watch;
+    }
+
+    /**
+     * Stores a directory's entries, read after {@link #watch} returned the given watch.
+     * Passing null entries gives up on caching the directory, e.g. because it was too large.
+     */
+    synchronized void put(Path path, Watch watch, DirectoryEntry[] directoryEntries, int level, FileTime modified) {
+        Path directory = key(path);
+        if (watches.get(directory) != watch) {
+            // Invalidated while it was being read.
+            return;
+        }
+        if (directoryEntries == null || !enabled) {
+            if (!snapshots.containsKey(directory)) unwatch(directory);
+            return;
+        }
+        Snapshot snapshot = new Snapshot(directoryEntries, level, modified);
+        Snapshot previous = snapshots.put(directory, snapshot);
+        if (previous != null) {
+            entries -= previous.entries.length;
+            bytes -= previous.bytes;
+        }
+        entries += snapshot.entries.length;
+        bytes += snapshot.bytes;
+        Iterator<Map.Entry<Path, Snapshot>> eldest = snapshots.entrySet().iterator();
+        while ((entries > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            Map.Entry<Path, Snapshot> victim = eldest.next();
+            eldest.remove();
+            entries -= victim.getValue().entries.length;
+            bytes -= victim.getValue().bytes;
+            unwatch(victim.getKey());
+            evictions++;
+        }
+    }
+
+    /** Drops the snapshot of a directory whose contents changed. */
+    synchronized void invalidate(Path path) {
+        Path directory = key(path);
+        Snapshot snapshot = snapshots.remove(directory);
+        if (snapshot != null) {
+            entries -= snapshot.entries.length;
+            bytes -= snapshot.bytes;
+            invalidations++;
+        }
+        unwatch(directory);
+    }
+
+    synchronized void clear() {
+        for (Path directory : snapshots.keySet().toArray(new Path[0])) {
+            invalidate(directory);
+        }
+    }
+
+    synchronized String stats() {
+        return "Directory cache: " + (enabled ? "on" : "off") + "\n"
+                + "Snapshots: " + snapshots.size() + " (" + entries + " entries, " + (bytes / 1024) + " KB)\n"
+                + "Hits: " + hits + "  Misses: " + misses
+                + "  Evictions: " + evictions + "  Invalidations: " + invalidations;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    // Snapshots are keyed by absolute, normalized path, so "a/../b" and "b" share one.
+    private static Path key(Path directory) {
+        return directory.toAbsolutePath().normalize();
+    }
+
+    private void unwatch(Path directory) {
+        Watch watch = watches.remove(directory);
+        if (watch != null) watch.key.cancel();
+    }
+
+    private WatchService watchService() {
+        if (watchService == null && !watchFailed) {
+            try {
+                watchService = FileSystems.getDefault().newWatchService();
+            } catch (IOException | UnsupportedOperationException e) {
+                watchFailed = true;
+                return null;
+            }
+            Thread watcher = new Thread(() -> dispatch(watchService), "directory-cache-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+        return watchService;
+    }
+
+    /** Drops the snapshot of every directory that reports an event, until the service closes. */
+    private void dispatch(WatchService service) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                key.pollEvents();
+                Path directory = (Path) key.watchable();
+                synchronized (this) {
+                    Watch watch = watches.get(directory);
+                    if (watch != null && watch.key == key) {
+                        invalidate(directory);
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // The process is shutting down.
+        }
+    }
+
+    /** A rough count of the heap an entry occupies, strings included. */
+    private static long estimateBytes(DirectoryEntry entry) {
+        long size = 64 + 40 + 2L * entry.name.length();
+        if (entry.permissions != null) size += 40 + 2L * entry.permissions.length();
+        if (entry.owner != null) size += 40 + 2L * entry.owner.length();
+        if (entry.group != null) size += 40 + 2L * entry.group.length();
+        if (entry.linkTarget != null) size += 40 + 2L * entry.linkTarget.length();
+        return size;
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
+
+/**
+ * One entry of a directory listing: its name and, when they were asked for, the
+ * attributes 'ls' shows or sorts by. Unknown attributes are null or -1, which is also
+ * how an entry that vanished between reading the directory and stat'ing it looks.
+ */
+final class DirectoryEntry {
+    static final Comparator<DirectoryEntry> BY_NAME = (a, b) -> a.name.compareTo(b.name);
+    // Largest and newest first, as ls -S and ls -t print them.
+    static final Comparator<DirectoryEntry> BY_SIZE =
+            ((Comparator<DirectoryEntry>) (a, b) -> Long.compare(b.size, a.size)).thenComparing(BY_NAME);
+    static final Comparator<DirectoryEntry> BY_TIME =
+            ((Comparator<DirectoryEntry>) (a, b) -> Long.compare(b.modified, a.modified)).thenComparing(BY_NAME);
+
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+    final String name;
+    // 'd', 'l' or '-', or '?' when the attributes are unknown.
+    final char type;
+    final String permissions;
+    final String owner;
+    final String group;
+    final long size;
+    final long modified;
+    final String linkTarget;
+
+    private DirectoryEntry(String name, char type, String permissions, String owner, String group,
+                           long size, long modified, String linkTarget) {
+        this.name = name;
+        this.type = type;
+        this.permissions = permissions;
+        this.owner = owner;
+        this.group = group;
+        this.size = size;
+        this.modified = modified;
+        this.linkTarget = linkTarget;
+    }
+
+    static DirectoryEntry nameOnly(String name) {
+        return new DirectoryEntry(name, '?', null, null, null, -1, -1, null);
+    }
+
+    /**
+     * Reads an entry's attributes with a single readAttributes call, without following
+     * symbolic links. Owner, group, permissions and link target are only looked up when
+     * {@code full} is set, since resolving them costs more than the stat itself.
+     */
+    static DirectoryEntry read(Path directory, String name, boolean full) {
+        Path path = directory.resolve(name);
+        try {
+            if (full && POSIX) {
+                PosixFileAttributes attrs = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                return new DirectoryEntry(name, type(attrs), PosixFilePermissions.toString(attrs.permissions()),
+                        attrs.owner().getName(), attrs.group().getName(), attrs.size(),
+                        attrs.lastModifiedTime().toMillis(), linkTarget(path, attrs, full));
+            }
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return new DirectoryEntry(name, type(attrs), null, null, null, attrs.size(),
+                    attrs.lastModifiedTime().toMillis(), linkTarget(path, attrs, full));
+        } catch (IOException e) {
+            return nameOnly(name);
+        }
+    }
+
+    boolean isDirectory() {
+        return type == 'd';
+    }
+
+    private static char type(BasicFileAttributes attrs) {
+        return attrs.isDirectory() ? 'd' : attrs.isSymbolicLink() ? 'l' : '-';
+    }
+
+    private static String linkTarget(Path path, BasicFileAttributes attrs, boolean full) {
+        if (!full || !attrs.isSymbolicLink()) return null;
+        try {
+            return Files.readSymbolicLink(path).toString();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(name);
+        out.writeChar(type);
+        writeOptional(out, permissions);
+        writeOptional(out, owner);
+        writeOptional(out, group);
+        out.writeLong(size);
+        out.writeLong(modified);
+        writeOptional(out, linkTarget);
+    }
+
+    static DirectoryEntry readFrom(DataInputStream in) throws IOException {
+        return new DirectoryEntry(in.readUTF(), in.readChar(), readOptional(in), readOptional(in),
+                readOptional(in), in.readLong(), in.readLong(), readOptional(in));
+    }
+
+    private static void writeOptional(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
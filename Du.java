@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The 'du' builtin: prints the size of each directory under the paths given (the current
+ * directory by default), subdirectories before the directory holding them. -s prints only
+ * the totals of the paths given, -h prints sizes as "1.5 MB" instead of kilobytes.
+ * Sizes are the files' lengths, since Java doesn't expose the blocks a file takes.
+ * <p>
+ * The tree is read by a {@link TreeWalk}, every directory on its own task. What a
+ * directory holds directly, the total of its files and the names of its subdirectories,
+ * is kept between runs together with the directory's modification time. Adding, removing
+ * or renaming an entry changes that time, so when it is unchanged the directory is
+ * neither listed nor are its files read again; only its subdirectories are checked. A file
+ * that grows in place doesn't touch its directory, so --no-cache reads everything afresh.
+ */
+final class Du {
+    // Directories remembered; the cache is emptied when it grows past this.
+    private static final int MAX_CACHED_DIRECTORIES = 200_000;
+    // A directory changed this recently may change again within the same timestamp, so it isn't cached.
+    private static final long SETTLE_MILLIS = TimeUnit.SECONDS.toMillis(2);
+    private static final Map<Path, Contents> CACHE = new ConcurrentHashMap<>();
+
+    private Du() {
+    }
+
+    static void run(CommandContext ctx, String[] args) {
+        boolean summary = false;
+        boolean human = false;
+        boolean useCache = true;
+        List<String> roots = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--no-cache")) {
+                useCache = false;
+            } else if (arg.startsWith("-") && arg.length() > 1) {
+                for (int i = 1; i < arg.length(); i++) {
+                    switch (arg.charAt(i)) {
+                        case 's':
+                            summary = true;
+                            break;
+                        case 'h':
+                            human = true;
+                            break;
+                        default:
+                            ctx.error("Error: Unknown option '-" + arg.charAt(i) + "' for du.");
+                            return;
+                    }
+                }
+            } else {
+                roots.add(arg);
+            }
+        }
+        if (roots.isEmpty()) roots.add(".");
+
+        List<DuTask> walks = new ArrayList<>();
+        for (String root : roots) {
+            Path path = ctx.resolve(root);
+            DuTask walk = null;
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                walk = new DuTask(path, root, useCache);
+                Pools.IO.execute(walk);
+            }
+            walks.add(walk);
+        }
+        OutputSink out = ctx.stdout();
+        for (int r = 0; r < roots.size(); r++) {
+            DuTask walk = walks.get(r);
+            if (walk == null) {
+                // A single file: its own size.
+                Path path = ctx.resolve(roots.get(r));
+                try {
+                    long size = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).size();
+                    out.println(format(size, human) + "\t" + roots.get(r));
+                } catch (IOException e) {
+                    ctx.error("Error: '" + roots.get(r) + "' not found.");
+                }
+                continue;
+            }
+            walk.join();
+            if (summary) {
+                report(ctx, walk, human);
+            } else {
+                print(ctx, walk, human);
+            }
+        }
+    }
+
+    /** What a directory holds directly, as of its modification time. */
+    private static final class Contents {
+        final FileTime modified;
+        // The sizes of its files and links, subdirectories left out.
+        final long bytes;
+        final String[] subdirectories;
+
+        Contents(FileTime modified, long bytes, String[] subdirectories) {
+            this.modified = modified;
+            this.bytes = bytes;
+            this.subdirectories = subdirectories;
+        }
+    }
+
+    /**
+     * Sizes up one directory: its own files, from the cache if it hasn't changed, plus the
+     * totals of its subdirectories, each on a task of its own. Yields the total.
+     */
+    private static final class DuTask extends TreeWalk<Long> {
+        private final boolean useCache;
+        DuTask[] children = new DuTask[0];
+        // Whether this directory, not counting those below it, could not be read.
+        boolean failed;
+
+        DuTask(Path directory, String label, boolean useCache) {
+            super(directory, label);
+            this.useCache = useCache;
+        }
+
+        @Override
+        protected Long compute() {
+            Contents contents;
+            try {
+                contents = contents();
+            } catch (IOException e) {
+                failed = true;
+                return 0L;
+            }
+            children = new DuTask[contents.subdirectories.length];
+            for (int i = 0; i < children.length; i++) {
+                String name = contents.subdirectories[i];
+                children[i] = new DuTask(directory.resolve(name), label(name), useCache);
+            }
+            for (int i = children.length - 1; i >= 0; i--) {
+                children[i].fork();
+            }
+            long total = contents.bytes;
+            for (DuTask child : children) {
+                total += child.join();
+            }
+            return total;
+        }
+
+        private Contents contents() throws IOException {
+            Path key = directory.toAbsolutePath().normalize();
+            FileTime modified = Files.readAttributes(directory, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS).lastModifiedTime();
+            Contents cached = useCache ? CACHE.get(key) : null;
+            if (cached != null && cached.modified.equals(modified)) return cached;
+
+            long bytes = 0;
+            List<String> subdirectories = new ArrayList<>();
+            for (DirectoryEntry entry : entries()) {
+                if (entry.isDirectory()) {
+                    subdirectories.add(entry.name);
+                } else if (entry.size > 0) {
+                    bytes += entry.size;
+                }
+            }
+            Contents contents = new Contents(modified, bytes, subdirectories.toArray(new String[0]));
+            if (modified.toMillis() < System.currentTimeMillis() - SETTLE_MILLIS) {
+                if (CACHE.size() >= MAX_CACHED_DIRECTORIES) CACHE.clear();
+                CACHE.put(key, contents);
+            } else {
+                CACHE.remove(key);
+            }
+            return contents;
+        }
+    }
+
+    /** Prints every directory of a finished walk, each after the directories inside it. */
+    private static void print(CommandContext ctx, DuTask root, boolean human) {
+        Deque<DuTask> tasks = new ArrayDeque<>();
+        Deque<int[]> positions = new ArrayDeque<>();
+        tasks.push(root);
+        positions.push(new int[1]);
+        while (!tasks.isEmpty()) {
+            DuTask task = tasks.peek();
+            int[] position = positions.peek();
+            if (position[0] < task.children.length) {
+                tasks.push(task.children[position[0]++]);
+                positions.push(new int[1]);
+                continue;
+            }
+            tasks.pop();
+            positions.pop();
+            if (!report(ctx, task, human)) return;
+        }
+    }
+
+    private static boolean report(CommandContext ctx, DuTask task, boolean human) {
+        if (task.failed) {
+            ctx.error("Error: Unable to read '" + task.label + "'.");
+            return true;
+        }
+        ctx.stdout().println(format(task.join(), human) + "\t" + task.label);
+        return !ctx.stdout().checkError();
+    }
+
+    /** Kilobytes, rounded up, or a size like "1.5 MB" for -h. */
+    private static String format(long bytes, boolean human) {
+        return human ? Copier.formatBytes(bytes) : Long.toString((bytes + 1023) / 1024);
+    }
+}
@@ -0,0 +1,174 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts any number of directory entries in bounded memory. Entries are collected in a
+ * fixed-size run; a full run is sorted and spilled to a temporary file, and the spilled
+ * runs are merged back in order when the result is read. Listings that fit in one run
+ * never touch the disk.
+ */
+final class EntrySorter implements Closeable {
+    // Most runs merged at once, to stay well clear of the open file limit.
+    private static final int MAX_FAN_IN = 64;
+    private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+
+    interface EntryConsumer {
+        void accept(DirectoryEntry entry) throws IOException;
+    }
+
+    private final Comparator<DirectoryEntry> order;
+    private final int runSize;
+    private DirectoryEntry[] run;
+    private int count;
+    private final List<Path> spills = new ArrayList<>();
+
+    EntrySorter(Comparator<DirectoryEntry> order, int runSize) {
+        this.order = order;
+        this.runSize = runSize;
+        // The run grows on demand, so sorting a small directory stays cheap.
+        this.run = new DirectoryEntry[Math.min(runSize, 1024)];
+    }
+
+    void add(DirectoryEntry entry) throws IOException {
+        if (count == run.length) {
+            if (run.length < runSize) {
+                run = Arrays.copyOf(run, Math.min(runSize, run.length * 2));
+            } else {
+                spill();
+            }
+        }
+        run[count++] = entry;
+    }
+
+    /** Hands every entry added so far to the consumer, in order. */
+    void drain(EntryConsumer consumer) throws IOException {
+        Arrays.sort(run, 0, count, order);
+        if (spills.isEmpty()) {
+            for (int i = 0; i < count; i++) {
+                consumer.accept(run[i]);
+            }
+            return;
+        }
+        while (spills.size() > MAX_FAN_IN) {
+            List<Path> group = new ArrayList<>(spills.subList(0, MAX_FAN_IN));
+            Path merged = newSpillFile();
+            try (DataOutputStream out = spillOutput(merged)) {
+                merge(group, null, 0, entry -> write(out, entry));
+                out.writeBoolean(false);
+            }
+            deleteAll(group);
+        }
+        merge(spills, run, count, consumer);
+    }
+
+    private void spill() throws IOException {
+        Arrays.sort(run, 0, count, order);
+        Path file = newSpillFile();
+        try (DataOutputStream out = spillOutput(file)) {
+            for (int i = 0; i < count; i++) {
+                write(out, run[i]);
+            }
+            out.writeBoolean(false);
+        }
+        Arrays.fill(run, 0, count, null);
+        count = 0;
+    }
+
+    private Path newSpillFile() throws IOException {
+        Path file = Files.createTempFile("ls-run", ".tmp");
+        spills.add(file);
+        return file;
+    }
+
+    /** K-way merge of sorted run files, plus an optional sorted in-memory run. */
+    private void merge(List<Path> files, DirectoryEntry[] memory, int memoryCount, EntryConsumer consumer)
+            throws IOException {
+        PriorityQueue<Cursor> heap = new PriorityQueue<>(files.size() + 1, (a, b) -> order.compare(a.current, b.current));
+        List<DataInputStream> inputs = new ArrayList<>(files.size());
+        try {
+            for (Path file : files) {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(Files.newInputStream(file), SPILL_BUFFER_SIZE));
+                inputs.add(in);
+                Cursor cursor = new Cursor(in);
+                if (cursor.advance()) heap.add(cursor);
+            }
+            if (memoryCount > 0) {
+                Cursor cursor = new Cursor(memory, memoryCount);
+                if (cursor.advance()) heap.add(cursor);
+            }
+            while (!heap.isEmpty()) {
+                Cursor cursor = heap.poll();
+                consumer.accept(cursor.current);
+                if (cursor.advance()) heap.add(cursor);
+            }
+        } finally {
+            for (DataInputStream in : inputs) {
+                in.close();
+            }
+        }
+    }
+
+    // Each record is preceded by true and the file ends with false, so a run needs no count up front.
+    private static void write(DataOutputStream out, DirectoryEntry entry) throws IOException {
+        out.writeBoolean(true);
+        entry.writeTo(out);
+    }
+
+    private static DataOutputStream spillOutput(Path file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), SPILL_BUFFER_SIZE));
+    }
+
+    private void deleteAll(List<Path> files) throws IOException {
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+        spills.removeAll(files);
+    }
+
+    @Override
+    public void close() throws IOException {
+        deleteAll(new ArrayList<>(spills));
+    }
+
+    /** The next unmerged entry of one run, read either from a spill file or from memory. */
+    private static final class Cursor {
+        private final DataInputStream in;
+        private final DirectoryEntry[] memory;
+        private final int memoryCount;
+        private int index;
+        DirectoryEntry current;
+
+        Cursor(DataInputStream in) {
+            this.in = in;
+            this.memory = null;
+            this.memoryCount = 0;
+        }
+
+        Cursor(DirectoryEntry[] memory, int count) {
+            this.in = null;
+            this.memory = memory;
+            this.memoryCount = count;
+        }
+
+        boolean advance() throws IOException {
+            if (memory != null) {
+                current = index < memoryCount ? memory[index++] : null;
+                return current != null;
+            }
+            current = in.readBoolean() ? DirectoryEntry.readFrom(in) : null;
+            return current != null;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs programs from PATH for command names that are not builtins.
+ * <p>
+ * Where a name was found on PATH is remembered, as 'hash' in other shells does, so a
+ * program used again is started without searching every PATH directory. The memory is
+ * dropped when PATH changes, when a remembered program fails to start, and on 'hash -r'.
+ * <p>
+ * A program's output is copied into the command's output as it comes, and its errors
+ * into the command's errors; piped input is copied into it. A pipeline made only of
+ * programs is started with {@link ProcessBuilder#startPipeline}, so the data between them
+ * flows through kernel pipes and never passes through the JVM; a redirection at either
+ * end of it is handed to the kernel too. A program that is given no input sees its input
+ * closed, and a program that exits with a non-zero status fails the command. At the
+ * interactive prompt, with nothing piped or redirected, a program is given the terminal
+ * itself instead, so editors, pagers and interpreters work as they do in other shells.
+ */
+final class External {
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final Map<String, Path> PROGRAMS = new ConcurrentHashMap<>();
+    // The PATH the programs above were found on.
+    private static volatile String programsPath = "";
+
+    private External() {
+    }
+
+    /**
+     * The program a command name stands for: a path relative to the working directory if
+     * the name has a '/', otherwise the first executable of that name on PATH. Null if
+     * there is none.
+     */
+    static Path find(CommandContext ctx, String name) {
+        if (name.indexOf('/') >= 0) {
+            Path program = ctx.resolve(name);
+            return isProgram(program) ? program : null;
+        }
+        String path = System.getenv("PATH");
+        if (path == null) return null;
+        if (!path.equals(programsPath)) {
+            PROGRAMS.clear();
+            programsPath = path;
+        }
+        Path program = PROGRAMS.get(name);
+        if (program != null) return program;
+        for (String directory : path.split(File.pathSeparator, -1)) {
+            Path candidate = ctx.currentDirectory().resolve(directory.isEmpty() ? "." : directory).resolve(name);
+            if (isProgram(candidate)) {
+                // Only absolute directories are remembered; "." means a different place after 'cd'.
+                if (Paths.get(directory).isAbsolute()) PROGRAMS.put(name, candidate);
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isProgram(Path path) {
+        return Files.isRegularFile(path) && Files.isExecutable(path);
+    }
+
+    /** Runs one program with the context's streams and waits for it. */
+    static void run(CommandContext ctx, String name, Path program, String[] args) {
+        List<String> command = new ArrayList<>(args.length + 1);
+        command.add(program.toString());
+        command.addAll(List.of(args));
+        ProcessBuilder builder = new ProcessBuilder(command).directory(ctx.currentDirectory().toFile());
+        if (ctx.isAtTerminal()) {
+            // What was printed before must show up before the program draws on the terminal.
+            ctx.stdout().flush();
+            ctx.stderr().flush();
+            builder.inheritIO();
+        }
+        Process process;
+        try {
+            process = builder.start();
+        } catch (IOException e) {
+            forget(name);
+            ctx.error("Error: Could not run '" + name + "': " + e.getMessage());
+            return;
+        }
+        // With the terminal inherited, the process's own streams are empty and copying ends at once.
+        wait(ctx, List.of(process), ctx.stdin(), true);
+    }
+
+    /**
+     * Runs a pipeline of programs, each a command line with the program's path first,
+     * connected by kernel pipes. Input comes from {@code inputFile}, or else the context's
+     * input; output goes to {@code outputFile} (appended to if {@code append}), or else the
+     * context's output. Returns false if the pipeline could not be started.
+     */
+    static boolean pipeline(CommandContext ctx, List<List<String>> commands, Path inputFile, Path outputFile,
+                         boolean append) {
+        List<ProcessBuilder> builders = new ArrayList<>(commands.size());
+        for (List<String> command : commands) {
+            builders.add(new ProcessBuilder(command).directory(ctx.currentDirectory().toFile()));
+        }
+        if (inputFile != null) {
+            builders.get(0).redirectInput(inputFile.toFile());
+        }
+        if (outputFile != null) {
+            ProcessBuilder last = builders.get(builders.size() - 1);
+            last.redirectOutput(append ? ProcessBuilder.Redirect.appendTo(outputFile.toFile())
+                    : ProcessBuilder.Redirect.to(outputFile.toFile()));
+        }
+        List<Process> processes;
+        try {
+            processes = ProcessBuilder.startPipeline(builders);
+        } catch (IOException e) {
+            PROGRAMS.clear();
+            ctx.error("Error: Could not run pipeline: " + e.getMessage());
+            return false;
+        }
+        wait(ctx, processes, inputFile == null ? ctx.stdin() : null, outputFile == null);
+        return true;
+    }
+
+    /**
+     * Feeds the first process, copies the last one's output (if {@code copyOutput}) and
+     * every process's errors, and waits for them all to exit.
+     */
+    private static void wait(CommandContext ctx, List<Process> processes, InputStream input, boolean copyOutput) {
+        Process first = processes.get(0);
+        Process last = processes.get(processes.size() - 1);
+        List<Thread> copiers = new ArrayList<>();
+        if (input != null) {
+            // Not waited for: it ends when the input does, or at the first write after the program exits.
+            start("process-stdin", () -> {
+                try (OutputStream in = first.getOutputStream()) {
+                    input.transferTo(in);
+                } catch (IOException e) {
+                    // The program exited without reading everything; the rest is not wanted.
+                }
+            });
+        } else {
+            close(first.getOutputStream());
+        }
+        for (Process process : processes) {
+            // Each gets a sink of its own: sinks are not thread-safe.
+            OutputSink errors = ctx.stderr().share();
+            copiers.add(start("process-stderr", () -> {
+                try (errors; InputStream stream = process.getErrorStream()) {
+                    copy(stream, errors);
+                } catch (IOException e) {
+                    // The error stream broke off; the exit status still tells.
+                }
+            }));
+        }
+        try {
+            if (copyOutput) {
+                try (InputStream stream = last.getInputStream()) {
+                    copy(stream, ctx.stdout());
+                } catch (IOException e) {
+                    // Closing our end lets the program see a broken pipe, as when a reader quits.
+                }
+            }
+            int status = 0;
+            for (Process process : processes) {
+                status = process.waitFor();
+            }
+            for (Thread copier : copiers) {
+                copier.join();
+            }
+            if (status != 0) ctx.fail();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            processes.forEach(Process::destroy);
+            ctx.error("Error: Interrupted; the program was stopped.");
+        }
+    }
+
+    /** Copies until the stream ends or the sink stops taking output. */
+    private static void copy(InputStream stream, OutputSink sink) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            sink.write(buffer, 0, read);
+            // Output shows up as the program makes it, not when a buffer happens to fill.
+            if (stream.available() == 0) sink.flush();
+            if (sink.checkError()) return;
+        }
+    }
+
+    private static Thread start(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void close(OutputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void forget(String name) {
+        PROGRAMS.remove(name);
+    }
+
+    /** The 'hash' builtin: lists where programs were found, or forgets them all with -r. */
+    static void hash(CommandContext ctx, String[] args) {
+        if (args.length == 1 && args[0].equals("-r")) {
+            PROGRAMS.clear();
+            return;
+        }
+        if (args.length > 0) {
+            ctx.error("Error: Usage: hash [-r]");
+            return;
+        }
+        for (Map.Entry<String, Path> program : new TreeMap<>(PROGRAMS).entrySet()) {
+            ctx.stdout().println(program.getKey() + "\t" + program.getValue());
+        }
+    }
+}
@@ -0,0 +1,523 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The builtins that create, remove, copy and move files: 'mkdir', 'rmdir', 'touch', 'rm',
+ * 'cp' and 'mv'. Each takes any number of names, which it can take one at a time as
+ * their wildcards are expanded.
+ * <p>
+ * The paths are handed to a bounded pool of workers in batches, so thousands of files
+ * cost a few parallel rounds of system calls rather than one prompt each, and the lines
+ * for a batch are printed in argument order once it is done. A path that fails doesn't
+ * stop the others: the first few errors are printed as they are found and the command
+ * ends with a single line saying how many paths failed. 'rm -r' deletes a tree depth
+ * first in parallel, each directory once everything in it is gone.
+ * <p>
+ * Options come before the names: -q leaves out the line printed for every path (and the
+ * progress of 'cp'), -p makes 'mkdir' create missing parents and accept directories that
+ * already exist, and -r lets 'rm' remove and 'cp' copy directories with their contents.
+ * 'cp' hands its work to {@link Copier}, which 'mv' also uses when the destination is on
+ * another file system and can't simply be renamed to.
+ */
+final class FileCommands {
+    // Paths handed to the pool at once; their lines are printed before the next batch starts.
+    private static final int BATCH_SIZE = 4096;
+    // Paths handled by one task of a batch.
+    private static final int TASK_SIZE = 64;
+    // Entries of one directory deleted by one task of 'rm -r'.
+    private static final int DELETE_BATCH_SIZE = 1024;
+    // Errors printed in full; the rest are only counted in the summary.
+    private static final int MAX_REPORTED_ERRORS = 10;
+
+    private FileCommands() {
+    }
+
+    static void mkdir(CommandContext ctx, Iterator<String> args) {
+        Options options = Options.parse(ctx, "mkdir", args, "qp", "Error: 'mkdir' requires a directory name.");
+        if (options == null) return;
+        apply(ctx, "mkdir", options.names, options.quiet, (path, name) -> {
+            try {
+                if (options.has('p')) {
+                    if (Files.isDirectory(path)) return null;
+                    Files.createDirectories(path);
+                } else {
+                    Files.createDirectory(path);
+                }
+            } catch (FileAlreadyExistsException e) {
+                throw new Failure("Error: '" + name + "' already exists.");
+            } catch (IOException e) {
+                throw new Failure("Error: Could not create directory '" + name + "'.");
+            }
+            CommandLineInterpreter.changed(path);
+            return "Directory created: " + name;
+        });
+    }
+
+    static void rmdir(CommandContext ctx, Iterator<String> args) {
+        Options options = Options.parse(ctx, "rmdir", args, "q", "Error: 'rmdir' requires a directory name.");
+        if (options == null) return;
+        apply(ctx, "rmdir", options.names, options.quiet, (path, name) -> {
+            if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                throw new Failure("Error: Directory '" + name + "' not found.");
+            }
+            if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                throw new Failure("Error: '" + name + "' is not a directory.");
+            }
+            try {
+                Files.delete(path);
+            } catch (DirectoryNotEmptyException e) {
+                throw new Failure("Error: Directory '" + name + "' is not empty.");
+            } catch (IOException e) {
+                throw new Failure("Error: Could not remove directory '" + name + "'.");
+            }
+            CommandLineInterpreter.changed(path);
+            return "Directory removed: " + name;
+        });
+    }
+
+    static void touch(CommandContext ctx, Iterator<String> args) {
+        Options options = Options.parse(ctx, "touch", args, "q", "Error: 'touch' requires a file name.");
+        if (options == null) return;
+        apply(ctx, "touch", options.names, options.quiet, (path, name) -> {
+            try {
+                Files.createFile(path);
+            } catch (FileAlreadyExistsException e) {
+                throw new Failure("Error: '" + name + "' already exists.");
+            } catch (IOException e) {
+                throw new Failure("Error: Could not create file '" + name + "'.");
+            }
+            CommandLineInterpreter.changed(path);
+            return "File created: " + name;
+        });
+    }
+
+    static void rm(CommandContext ctx, Iterator<String> args) {
+        Options options = Options.parse(ctx, "rm", args, "qrR", "Error: 'rm' requires a file name.");
+        if (options == null) return;
+        boolean recursive = options.has('r') || options.has('R');
+        apply(ctx, "rm", options.names, options.quiet, (path, name) -> {
+            if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                throw new Failure("Error: File '" + name + "' not found.");
+            }
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (!recursive) {
+                    throw new Failure("Error: '" + name + "' is a directory, not a file.");
+                }
+                removeTree(path, name);
+                return "Directory removed: " + name;
+            }
+            try {
+                Files.delete(path);
+            } catch (IOException e) {
+                throw new Failure("Error: Could not remove file '" + name + "'.");
+            }
+            CommandLineInterpreter.changed(path);
+            return "File removed: " + name;
+        });
+    }
+
+    static void mv(CommandContext ctx, Iterator<String> args) {
+        Options options = Options.parse(ctx, "mv", args, "q", "Error: 'mv' requires a source and a destination.");
+        if (options == null) return;
+        // The destination comes last, so mv needs all of its names at once.
+        List<String> names = options.remaining();
+        if (names.size() < 2) {
+            ctx.error("Error: 'mv' requires a source and a destination.");
+            return;
+        }
+        String destinationName = names.remove(names.size() - 1);
+        Path destination = ctx.resolve(destinationName);
+        // Sources go into the destination if it is a directory, as with cp; a single one may be renamed.
+        boolean into = Files.isDirectory(destination);
+        if (!into && names.size() > 1) {
+            ctx.error("Error: Target '" + destinationName + "' is not a directory.");
+            return;
+        }
+        apply(ctx, "mv", names.iterator(), options.quiet, (path, name) -> {
+            if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                throw new Failure("Error: Source '" + name + "' does not exist.");
+            }
+            Path target = into ? destination.resolve(path.getFileName()) : destination;
+            String targetName = into ? destinationName + "/" + path.getFileName() : destinationName;
+            if (target.toAbsolutePath().normalize().startsWith(path.toAbsolutePath().normalize())) {
+                throw new Failure("Error: Cannot move '" + name + "' into itself.");
+            }
+            try {
+                move(path, target, name);
+            } catch (IOException e) {
+                throw new Failure("Error: Could not move/rename '" + name + "'.");
+            }
+            CommandLineInterpreter.changed(path);
+            CommandLineInterpreter.changed(target);
+            return "Moved/Renamed '" + name + "' to '" + targetName + "'.";
+        });
+    }
+
+    /**
+     * Renames a path, or, when the target is on another file system and renaming is
+     * impossible, copies it there with {@link Copier} and deletes the original.
+     */
+    private static void move(Path source, Path target, String name) throws IOException, Failure {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        } catch (AtomicMoveNotSupportedException e) {
+            Copier copier = new Copier();
+            try {
+                copier.copy(List.of(source), List.of(target), null);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (!copier.failures().isEmpty()) {
+                throw new Failure("Error: Could not copy '" + name + "' to the other file system; it was left in place.");
+            }
+            if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+                removeTree(source, name);
+            } else {
+                Files.delete(source);
+            }
+            return;
+        } catch (IOException e) {
+            // rename() refuses some replacements Files.move makes, such as a file over an empty directory.
+        }
+        Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static void cp(CommandContext ctx, Iterator<String> args) {
+        Options options = Options.parse(ctx, "cp", args, "qrR", "Error: 'cp' requires a source and a destination.");
+        if (options == null) return;
+        List<String> names = options.remaining();
+        if (names.size() < 2) {
+            ctx.error("Error: 'cp' requires a source and a destination.");
+            return;
+        }
+        boolean recursive = options.has('r') || options.has('R');
+        String destinationName = names.remove(names.size() - 1);
+        Path destination = ctx.resolve(destinationName);
+        // Sources go into the destination if it is a directory; a single one may be copied to a new name.
+        boolean into = Files.isDirectory(destination);
+        if (!into && names.size() > 1) {
+            ctx.error("Error: Target '" + destinationName + "' is not a directory.");
+            return;
+        }
+        List<String> errors = new ArrayList<>();
+        List<Path> sources = new ArrayList<>();
+        List<Path> targets = new ArrayList<>();
+        for (String name : names) {
+            Path source = ctx.resolve(name);
+            Path target = into ? destination.resolve(source.getFileName()) : destination;
+            if (!Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+                errors.add("Error: Source '" + name + "' does not exist.");
+            } else if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS) && !recursive) {
+                errors.add("Error: '" + name + "' is a directory (use cp -r).");
+            } else if (target.toAbsolutePath().normalize().startsWith(source.toAbsolutePath().normalize())) {
+                errors.add("Error: Cannot copy '" + name + "' into itself.");
+            } else {
+                sources.add(source);
+                targets.add(target);
+            }
+        }
+        Copier copier = new Copier();
+        try {
+            copier.copy(sources, targets, options.quiet ? null : line -> {
+                ctx.stderr().println(line);
+                ctx.stderr().flush();
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ctx.error("Error: cp was interrupted.");
+            return;
+        } finally {
+            for (Path target : targets) {
+                CommandLineInterpreter.changed(target);
+            }
+        }
+        for (Path failed : copier.failures()) {
+            Path shown = failed.startsWith(ctx.currentDirectory()) ? ctx.currentDirectory().relativize(failed) : failed;
+            errors.add("Error: Could not copy '" + shown + "'.");
+        }
+        for (int i = 0; i < Math.min(errors.size(), MAX_REPORTED_ERRORS); i++) {
+            ctx.error(errors.get(i));
+        }
+        if (errors.size() > 1) {
+            ctx.error("Error: cp failed for " + errors.size() + " paths"
+                    + (errors.size() > MAX_REPORTED_ERRORS ? " (" + (errors.size() - MAX_REPORTED_ERRORS) + " not shown)" : "") + ".");
+        }
+        if (!options.quiet && !sources.isEmpty()) {
+            ctx.stdout().println("Copied " + copier.describe());
+        }
+    }
+
+    /**
+     * The flags a command was given and the names that follow them. Flags come before the
+     * names, so the names can be taken one at a time as their wildcards are expanded.
+     */
+    private static final class Options {
+        final StringBuilder flags = new StringBuilder();
+        Iterator<String> names;
+        boolean quiet;
+
+        static Options parse(CommandContext ctx, String command, Iterator<String> args, String allowed, String missing) {
+            Options options = new Options();
+            String first = null;
+            while (args.hasNext()) {
+                String arg = args.next();
+                if (arg.equals("--")) {
+                    // Everything after "--" is a name, even if it starts with '-'.
+                    first = args.hasNext() ? args.next() : null;
+                    break;
+                }
+                if (!arg.startsWith("-") || arg.length() == 1) {
+                    first = arg;
+                    break;
+                }
+                for (int i = 1; i < arg.length(); i++) {
+                    char flag = arg.charAt(i);
+                    if (allowed.indexOf(flag) < 0) {
+                        ctx.error("Error: Unknown option '-" + flag + "' for " + command + ".");
+                        return null;
+                    }
+                    options.flags.append(flag);
+                }
+            }
+            if (first == null) {
+                ctx.error(missing);
+                return null;
+            }
+            String firstName = first;
+            options.names = new Iterator<String>() {
+                private boolean firstTaken;
+
+                @Override
+                public boolean hasNext() {
+                    return !firstTaken || args.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    if (firstTaken) return args.next();
+                    firstTaken = true;
+                    return firstName;
+                }
+            };
+            options.quiet = options.has('q');
+            return options;
+        }
+
+        boolean has(char flag) {
+            return flags.indexOf(String.valueOf(flag)) >= 0;
+        }
+
+        /** All the names at once, for the commands that must see the last before acting. */
+        List<String> remaining() {
+            List<String> all = new ArrayList<>();
+            names.forEachRemaining(all::add);
+            return all;
+        }
+    }
+
+    /** Does something to one path, returning the line to print for it (null for none). */
+    @FunctionalInterface
+    private interface Operation {
+        String apply(Path path, String name) throws Failure;
+    }
+
+    /** Why an operation failed on one path, as the error line to print. */
+    private static final class Failure extends Exception {
+        Failure(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * Applies an operation to every name, a batch at a time on the pool, printing the
+     * results of each batch in order and a summary of the failures at the end. Names are
+     * only taken from the iterator as each batch is filled.
+     */
+    private static void apply(CommandContext ctx, String command, Iterator<String> names, boolean quiet, Operation operation) {
+        List<String> batch = new ArrayList<>();
+        String[] lines = new String[BATCH_SIZE];
+        boolean[] failed = new boolean[BATCH_SIZE];
+        long total = 0;
+        long failures = 0;
+        while (names.hasNext()) {
+            batch.clear();
+            while (batch.size() < BATCH_SIZE && names.hasNext()) {
+                batch.add(names.next());
+            }
+            total += batch.size();
+            Batch task = new Batch(ctx, batch, 0, batch.size(), operation, lines, failed);
+            if (batch.size() == 1) {
+                // A single path isn't worth a trip to the pool.
+                task.compute();
+            } else {
+                Pools.IO.invoke(task);
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                if (failed[i]) {
+                    if (++failures <= MAX_REPORTED_ERRORS) ctx.error(lines[i]);
+                } else if (!quiet && lines[i] != null) {
+                    ctx.stdout().println(lines[i]);
+                }
+            }
+        }
+        if (failures > 0 && total > 1) {
+            ctx.error("Error: " + command + " failed for " + failures + " of " + total + " paths"
+                    + (failures > MAX_REPORTED_ERRORS ? " (" + (failures - MAX_REPORTED_ERRORS) + " not shown)" : "") + ".");
+        }
+    }
+
+    /** Applies an operation to a range of a batch's names, splitting it until each task has a few. */
+    private static final class Batch extends RecursiveAction {
+        private final CommandContext ctx;
+        private final List<String> names;
+        private final int from;
+        private final int to;
+        private final Operation operation;
+        private final String[] lines;
+        private final boolean[] failed;
+
+        Batch(CommandContext ctx, List<String> names, int from, int to, Operation operation,
+              String[] lines, boolean[] failed) {
+            this.ctx = ctx;
+            this.names = names;
+            this.from = from;
+            this.to = to;
+            this.operation = operation;
+            this.lines = lines;
+            this.failed = failed;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > TASK_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Batch(ctx, names, from, middle, operation, lines, failed),
+                        new Batch(ctx, names, middle, to, operation, lines, failed));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                String name = names.get(i);
+                try {
+                    lines[i] = operation.apply(ctx.resolve(name), name);
+                    failed[i] = false;
+                } catch (Failure e) {
+                    lines[i] = e.getMessage();
+                    failed[i] = true;
+                }
+            }
+        }
+    }
+
+    /** Deletes a directory and everything under it, or says how much of it is left. */
+    private static void removeTree(Path directory, String name) throws Failure {
+        Queue<Path> failures = new ConcurrentLinkedQueue<>();
+        TreeDelete delete = new TreeDelete(directory, failures);
+        if (ForkJoinTask.inForkJoinPool()) {
+            delete.invoke();
+        } else {
+            Pools.IO.invoke(delete);
+        }
+        CommandLineInterpreter.changed(directory);
+        if (!failures.isEmpty()) {
+            throw new Failure("Error: Could not remove '" + name + "': " + failures.size()
+                    + " entries could not be deleted, such as '" + failures.peek() + "'.");
+        }
+    }
+
+    /**
+     * Deletes a directory tree in post order: the subdirectories are deleted by tasks of
+     * their own and the files in batches, all in parallel, then the directory itself.
+     * Symbolic links are deleted, never followed.
+     */
+    private static final class TreeDelete extends RecursiveAction {
+        private final Path directory;
+        private final Queue<Path> failures;
+
+        TreeDelete(Path directory, Queue<Path> failures) {
+            this.directory = directory;
+            this.failures = failures;
+        }
+
+        @Override
+        protected void compute() {
+            List<RecursiveAction> tasks = new ArrayList<>();
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                        tasks.add(new TreeDelete(entry, failures));
+                    } else {
+                        files.add(entry);
+                        if (files.size() == DELETE_BATCH_SIZE) {
+                            tasks.add(new FileDelete(files, failures));
+                            files = new ArrayList<>();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                failures.add(directory);
+                return;
+            }
+            for (int i = tasks.size() - 1; i >= 0; i--) {
+                tasks.get(i).fork();
+            }
+            FileDelete.delete(files, failures);
+            for (RecursiveAction task : tasks) {
+                task.join();
+            }
+            try {
+                Files.delete(directory);
+            } catch (NoSuchFileException e) {
+                // Already gone.
+            } catch (IOException e) {
+                failures.add(directory);
+            }
+            Ls.cache().invalidate(directory);
+        }
+    }
+
+    private static final class FileDelete extends RecursiveAction {
+        private final List<Path> files;
+        private final Queue<Path> failures;
+
+        FileDelete(List<Path> files, Queue<Path> failures) {
+            this.files = files;
+            this.failures = failures;
+        }
+
+        @Override
+        protected void compute() {
+            delete(files, failures);
+        }
+
+        static void delete(List<Path> files, Queue<Path> failures) {
+            for (Path file : files) {
+                try {
+                    Files.delete(file);
+                } catch (NoSuchFileException e) {
+                    // Already gone.
+                } catch (IOException e) {
+                    failures.add(file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The 'find' builtin: prints the paths under each starting point (the current directory
+ * by default) that pass every test given.
+ * <p>
+ * Tests: -name and -iname match the file name against a glob (quote it, or the
+ * interpreter expands it first), -type f, d or l picks regular files, directories or
+ * symbolic links, -size [+|-]N[c|k|M|G] compares the size in units of 512 bytes (or the
+ * unit given), rounded up, and -mtime [+|-]N compares the days since the last
+ * modification. A leading '+' means more than N and '-' less than N.
+ * <p>
+ * The tree is read by a {@link TreeWalk}, every directory on its own task, and the
+ * entries of each are tested there in parallel. The caller prints the matches in the
+ * order a sequential walk would find them: a directory's entries in name order, each
+ * subdirectory's contents right after its own line.
+ */
+final class Find {
+    private static final long MILLIS_PER_DAY = TimeUnit.DAYS.toMillis(1);
+
+    private Find() {
+    }
+
+    static void run(CommandContext ctx, String[] args) {
+        List<String> roots = new ArrayList<>();
+        int i = 0;
+        while (i < args.length && !(args[i].startsWith("-") && args[i].length() > 1)) {
+            roots.add(args[i++]);
+        }
+        if (roots.isEmpty()) roots.add(".");
+
+        Search search = new Search();
+        while (i < args.length) {
+            String test = args[i++];
+            if (i == args.length) {
+                ctx.error(test.startsWith("-") ? "Error: '" + test + "' requires a value." : "Error: Unexpected '" + test + "' for find.");
+                return;
+            }
+            String value = args[i++];
+            try {
+                search.tests.add(test(test, value));
+            } catch (IllegalArgumentException e) {
+                ctx.error("Error: " + e.getMessage());
+                return;
+            }
+        }
+
+        List<FindTask> walks = new ArrayList<>();
+        for (String root : roots) {
+            Path path = ctx.resolve(root);
+            FindTask walk = null;
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                walk = new FindTask(path, root, search);
+                Pools.IO.execute(walk);
+            }
+            walks.add(walk);
+        }
+        try {
+            for (int r = 0; r < roots.size(); r++) {
+                String root = roots.get(r);
+                Path path = ctx.resolve(root);
+                DirectoryEntry entry = DirectoryEntry.read(path, "", false);
+                if (entry.type == '?') {
+                    ctx.error("Error: '" + root + "' not found.");
+                    continue;
+                }
+                Path fileName = Paths.get(root).getFileName();
+                if (search.matches(fileName != null ? fileName.toString() : root, entry)) {
+                    ctx.stdout().println(root);
+                }
+                if (walks.get(r) != null && !print(ctx, walks.get(r))) break;
+            }
+        } finally {
+            // Stop the walks nobody will print, e.g. when a pipe's reader has gone.
+            search.cancelled = true;
+        }
+    }
+
+    /** Parses one test and its value. */
+    private static BiPredicate<String, DirectoryEntry> test(String test, String value) {
+        switch (test) {
+            case "-name":
+            case "-iname": {
+                PathMatcher matcher;
+                try {
+                    matcher = FileSystems.getDefault().getPathMatcher("glob:"
+                            + (test.equals("-iname") ? value.toLowerCase(Locale.ROOT) : value));
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("Invalid pattern '" + value + "'.");
+                }
+                boolean ignoreCase = test.equals("-iname");
+                return (name, entry) -> matcher.matches(Paths.get(ignoreCase ? name.toLowerCase(Locale.ROOT) : name));
+            }
+            case "-type": {
+                char type;
+                switch (value) {
+                    case "f":
+                        type = '-';
+                        break;
+                    case "d":
+                    case "l":
+                        type = value.charAt(0);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown type '" + value + "'; use f, d or l.");
+                }
+                return (name, entry) -> entry.type == type;
+            }
+            case "-size": {
+                Comparison comparison = Comparison.parse(value);
+                String number = comparison.number;
+                long unit = 512;
+                char suffix = number.isEmpty() ? 0 : number.charAt(number.length() - 1);
+                if (!Character.isDigit(suffix)) {
+                    switch (suffix) {
+                        case 'c':
+                            unit = 1;
+                            break;
+                        case 'k':
+                            unit = 1024;
+                            break;
+                        case 'M':
+                            unit = 1024 * 1024;
+                            break;
+                        case 'G':
+                            unit = 1024 * 1024 * 1024;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Invalid size '" + value + "'.");
+                    }
+                    number = number.substring(0, number.length() - 1);
+                }
+                long limit = Comparison.number(number, value, "size");
+                long size = unit;
+                // Like find elsewhere, sizes are rounded up to whole units before comparing.
+                return (name, entry) -> entry.size >= 0 && comparison.test((entry.size + size - 1) / size, limit);
+            }
+            case "-mtime": {
+                Comparison comparison = Comparison.parse(value);
+                long days = Comparison.number(comparison.number, value, "day count");
+                long now = System.currentTimeMillis();
+                return (name, entry) -> entry.modified >= 0 && comparison.test((now - entry.modified) / MILLIS_PER_DAY, days);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown test '" + test + "' for find.");
+        }
+    }
+
+    /** A number after an optional '+' (more than) or '-' (less than). */
+    private static final class Comparison {
+        final int sign;
+        final String number;
+
+        private Comparison(int sign, String number) {
+            this.sign = sign;
+            this.number = number;
+        }
+
+        static Comparison parse(String value) {
+            if (value.startsWith("+")) return new Comparison(1, value.substring(1));
+            if (value.startsWith("-")) return new Comparison(-1, value.substring(1));
+            return new Comparison(0, value);
+        }
+
+        static long number(String text, String value, String what) {
+            try {
+                long number = Long.parseLong(text);
+                if (number < 0) throw new NumberFormatException();
+                return number;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid " + what + " '" + value + "'.");
+            }
+        }
+
+        boolean test(long actual, long limit) {
+            return sign > 0 ? actual > limit : sign < 0 ? actual < limit : actual == limit;
+        }
+    }
+
+    /** The tests of one find command, and whether its walks should stop. */
+    private static final class Search {
+        final List<BiPredicate<String, DirectoryEntry>> tests = new ArrayList<>();
+        volatile boolean cancelled;
+
+        boolean matches(String name, DirectoryEntry entry) {
+            for (BiPredicate<String, DirectoryEntry> test : tests) {
+                if (!test.test(name, entry)) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reads one directory, tests its entries and forks a task for each subdirectory.
+     * Yields the entries, or null if the directory can't be read.
+     */
+    private static final class FindTask extends TreeWalk<DirectoryEntry[]> {
+        private final Search search;
+        boolean[] matched;
+        FindTask[] children;
+
+        FindTask(Path directory, String label, Search search) {
+            super(directory, label);
+            this.search = search;
+        }
+
+        @Override
+        protected DirectoryEntry[] compute() {
+            if (search.cancelled) return null;
+            DirectoryEntry[] entries;
+            try {
+                entries = entries();
+            } catch (IOException e) {
+                return null;
+            }
+            matched = new boolean[entries.length];
+            children = new FindTask[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                DirectoryEntry entry = entries[i];
+                matched[i] = search.matches(entry.name, entry);
+                if (entry.isDirectory()) {
+                    children[i] = new FindTask(directory.resolve(entry.name), label(entry.name), search);
+                }
+            }
+            for (int i = entries.length - 1; i >= 0; i--) {
+                if (children[i] != null) children[i].fork();
+            }
+            return entries;
+        }
+
+        /** Drops the entries and what was found in them, once they are all printed. */
+        void release() {
+            matched = null;
+            children = null;
+            setRawResult(null);
+        }
+    }
+
+    /**
+     * Prints the matches under a starting point depth first, each directory as soon as its
+     * task is done. Returns false if the output has gone away.
+     */
+    private static boolean print(CommandContext ctx, FindTask root) {
+        OutputSink out = ctx.stdout();
+        Deque<FindTask> tasks = new ArrayDeque<>();
+        Deque<DirectoryEntry[]> entries = new ArrayDeque<>();
+        Deque<int[]> positions = new ArrayDeque<>();
+        if (!enter(ctx, root, tasks, entries, positions)) return true;
+        while (!tasks.isEmpty()) {
+            FindTask task = tasks.peek();
+            int[] position = positions.peek();
+            DirectoryEntry[] listed = entries.peek();
+            if (position[0] == listed.length) {
+                // Every entry is printed: let the directory go so the walk holds only the open path.
+                tasks.pop().release();
+                entries.pop();
+                positions.pop();
+                continue;
+            }
+            int i = position[0]++;
+            if (task.matched[i]) {
+                out.println(task.label(listed[i].name));
+                if (out.checkError()) return false;
+            }
+            FindTask child = task.children[i];
+            if (child != null) {
+                task.children[i] = null;
+                enter(ctx, child, tasks, entries, positions);
+            }
+        }
+        return true;
+    }
+
+    private static boolean enter(CommandContext ctx, FindTask task, Deque<FindTask> tasks,
+                                 Deque<DirectoryEntry[]> entries, Deque<int[]> positions) {
+        DirectoryEntry[] listed = task.join();
+        if (listed == null) {
+            ctx.error("Error: Unable to read '" + task.label + "'.");
+            return false;
+        }
+        tasks.push(task);
+        entries.push(listed);
+        positions.push(new int[1]);
+        return true;
+    }
+}
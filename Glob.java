@@ -0,0 +1,426 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Expands the wildcards '*', '?', '[...]' and '**' in a path argument into the names of
+ * the files it matches, the way a shell does.
+ * <p>
+ * A pattern is split into components once and cached, with a compiled
+ * {@link PathMatcher} for each wildcard component. Runs of literal components are joined
+ * and checked with a single lookup, so only the directories under the literal prefix are
+ * ever read. '**' stands for any number of directories, this one included. Names starting
+ * with '.' only match a component that starts with '.' too, and '**' doesn't descend into
+ * them.
+ * <p>
+ * Matches are produced lazily, depth first, holding one directory listing per level of
+ * the pattern, so a pattern matching millions of files is never collected. Names come
+ * out sorted within each directory, except in directories too large to sort in memory,
+ * where the first SORT_LIMIT come sorted and the rest are streamed in the order the file
+ * system lists them. Commands that need an array of arguments get each word's matches
+ * sorted as a whole instead, as from a shell. A pattern that matches nothing expands to
+ * its own word, so the command reports the name it could not find.
+ */
+final class Glob {
+    // Entries of one directory sorted before they are matched; larger ones are streamed.
+    private static final int SORT_LIMIT = 65_536;
+    // Compiled patterns kept; the cache is emptied when it grows past this.
+    private static final int MAX_CACHED_PATTERNS = 1024;
+    private static final Map<String, Compiled> PATTERNS = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    private final Compiled compiled;
+
+    private Glob(Path directory, Compiled compiled) {
+        this.directory = directory;
+        this.compiled = compiled;
+    }
+
+    /**
+     * The words of a command line with every pattern expanded, where {@code globs} has a
+     * pattern or null for each word. If {@code sorted}, each word's matches are collected
+     * and sorted as a whole, as a shell does; otherwise they stream in walk order. The
+     * stream holds directories open while it is part way through them, so it must be closed.
+     */
+    static Stream<String> expandAll(Path directory, String[] words, String[] globs, boolean sorted) {
+        Words expansion = new Words(directory, words, globs, sorted);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(expansion,
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(expansion::close);
+    }
+
+    /** The words of a command line, each replaced by its expansion in turn. */
+    private static final class Words implements Iterator<String> {
+        private final Path directory;
+        private final String[] words;
+        private final String[] globs;
+        private final boolean sorted;
+        private int index;
+        private Iterator<String> current = Collections.emptyIterator();
+        // The word being expanded lazily, which may hold directories open.
+        private WordIterator open;
+
+        Words(Path directory, String[] words, String[] globs, boolean sorted) {
+            this.directory = directory;
+            this.words = words;
+            this.globs = globs;
+            this.sorted = sorted;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext() && index < words.length) {
+                close();
+                if (globs[index] == null) {
+                    current = List.of(words[index]).iterator();
+                } else if (sorted) {
+                    List<String> matches = new ArrayList<>();
+                    try (WordIterator word = new WordIterator(directory, globs[index], words[index])) {
+                        word.forEachRemaining(matches::add);
+                    }
+                    Collections.sort(matches);
+                    current = matches.iterator();
+                } else {
+                    open = new WordIterator(directory, globs[index], words[index]);
+                    current = open;
+                }
+                index++;
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return current.next();
+        }
+
+        void close() {
+            if (open != null) {
+                open.close();
+                open = null;
+            }
+        }
+    }
+
+    private static Compiled compile(String pattern) {
+        Compiled compiled = PATTERNS.get(pattern);
+        if (compiled == null) {
+            if (PATTERNS.size() >= MAX_CACHED_PATTERNS) PATTERNS.clear();
+            compiled = new Compiled(pattern);
+            PATTERNS.put(pattern, compiled);
+        }
+        return compiled;
+    }
+
+    /** A pattern split into components, ready to match. */
+    private static final class Compiled {
+        // The text every name starts from: "/" for an absolute pattern, "" otherwise.
+        final String root;
+        final Component[] components;
+        // Whether the pattern is malformed and so matches nothing.
+        final boolean invalid;
+
+        Compiled(String pattern) {
+            root = pattern.startsWith("/") ? "/" : "";
+            String[] parts = pattern.substring(root.length()).split("/+", -1);
+            List<Component> list = new ArrayList<>();
+            boolean malformed = false;
+            StringBuilder literal = null;
+            for (int i = 0; i < parts.length; i++) {
+                String part = parts[i];
+                if (part.isEmpty() && i < parts.length - 1) continue;
+                if (!part.isEmpty() && !part.equals("**") && !hasWildcard(part)) {
+                    // Consecutive literal names are looked up together, without listing anything.
+                    literal = literal == null ? new StringBuilder() : literal.append('/');
+                    literal.append(unescape(part));
+                    continue;
+                }
+                if (literal != null) {
+                    list.add(new Component(Component.LITERAL, literal.toString(), null, false));
+                    literal = null;
+                }
+                if (part.equals("**")) {
+                    list.add(new Component(Component.ANY_DEPTH, null, null, false));
+                } else if (part.isEmpty()) {
+                    list.add(new Component(Component.DIRECTORY, null, null, false));
+                } else {
+                    try {
+                        list.add(new Component(Component.WILDCARD, null,
+                                FileSystems.getDefault().getPathMatcher("glob:" + part),
+                                part.startsWith(".") || part.startsWith("\\.")));
+                    } catch (PatternSyntaxException e) {
+                        malformed = true;
+                    }
+                }
+            }
+            if (literal != null) {
+                list.add(new Component(Component.LITERAL, literal.toString(), null, false));
+            }
+            components = list.toArray(new Component[0]);
+            invalid = malformed;
+        }
+
+        private static boolean hasWildcard(String part) {
+            for (int i = 0; i < part.length(); i++) {
+                char c = part.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '*' || c == '?' || c == '[') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String unescape(String part) {
+            if (part.indexOf('\\') < 0) return part;
+            StringBuilder text = new StringBuilder(part.length());
+            for (int i = 0; i < part.length(); i++) {
+                char c = part.charAt(i);
+                if (c == '\\' && i + 1 < part.length()) c = part.charAt(++i);
+                text.append(c);
+            }
+            return text.toString();
+        }
+    }
+
+    /** One step of a pattern: literal names, a wildcard name, "**", or the slash that ends a pattern. */
+    private static final class Component {
+        static final int LITERAL = 0;
+        static final int WILDCARD = 1;
+        static final int ANY_DEPTH = 2;
+        static final int DIRECTORY = 3;
+
+        final int kind;
+        final String literal;
+        final PathMatcher matcher;
+        // Whether the wildcard matches names starting with '.'.
+        final boolean hidden;
+
+        Component(int kind, String literal, PathMatcher matcher, boolean hidden) {
+            this.kind = kind;
+            this.literal = literal;
+            this.matcher = matcher;
+            this.hidden = hidden;
+        }
+    }
+
+    /** The expansion of one word: its matches, or the word itself if there are none. */
+    private static final class WordIterator implements Iterator<String>, AutoCloseable {
+        // Null for a malformed pattern, which matches nothing.
+        private final Matches matches;
+        private String word;
+
+        WordIterator(Path directory, String pattern, String word) {
+            Compiled compiled = compile(pattern);
+            this.matches = compiled.invalid ? null : new Glob(directory, compiled).new Matches();
+            this.word = word;
+        }
+
+        private boolean hasMatch() {
+            return matches != null && matches.hasNext();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return hasMatch() || word != null;
+        }
+
+        @Override
+        public String next() {
+            if (hasMatch()) {
+                word = null;
+                return matches.next();
+            }
+            if (word == null) throw new NoSuchElementException();
+            String only = word;
+            word = null;
+            return only;
+        }
+
+        @Override
+        public void close() {
+            if (matches != null) matches.close();
+        }
+    }
+
+    /**
+     * Walks the pattern depth first. Each level of the stack holds the names that have
+     * matched the first {@code index} components and are still to be taken further.
+     */
+    private final class Matches implements Iterator<String> {
+        private final Deque<Level> stack = new ArrayDeque<>();
+        // Listings of large directories that are still being read.
+        private final List<DirectoryStream<Path>> open = new ArrayList<>();
+        private String next;
+
+        Matches() {
+            stack.push(new Level(0, List.of(compiled.root).iterator()));
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !stack.isEmpty()) {
+                Level level = stack.peek();
+                if (!level.names.hasNext()) {
+                    stack.pop();
+                    continue;
+                }
+                String name = level.names.next();
+                if (level.index == compiled.components.length) {
+                    // The base directory itself, which "**" at the end includes, is left out.
+                    if (!name.isEmpty() && !name.equals(compiled.root)) next = name;
+                } else {
+                    descend(name, level.index);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            String result = next;
+            next = null;
+            return result;
+        }
+
+        /** Closes the listings still open, for a caller that stops before the end. */
+        void close() {
+            for (DirectoryStream<Path> entries : open) {
+                Glob.close(entries);
+            }
+            open.clear();
+            stack.clear();
+        }
+
+        /** Pushes what matches component {@code index} under {@code name}. */
+        private void descend(String name, int index) {
+            Component component = compiled.components[index];
+            switch (component.kind) {
+                case Component.LITERAL: {
+                    String joined = join(name, component.literal);
+                    if (Files.exists(resolve(joined), LinkOption.NOFOLLOW_LINKS)) {
+                        stack.push(new Level(index + 1, List.of(joined).iterator()));
+                    }
+                    break;
+                }
+                case Component.WILDCARD:
+                    stack.push(new Level(index + 1,
+                            list(name, component.hidden, entry -> component.matcher.matches(entry.getFileName()))));
+                    break;
+                case Component.ANY_DEPTH: {
+                    // The directory itself, then each directory under it, which "**" applies to
+                    // again. At the end of the pattern files match too.
+                    boolean last = index == compiled.components.length - 1;
+                    stack.push(new Level(index,
+                            list(name, false, entry -> last || Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS))));
+                    stack.push(new Level(index + 1, List.of(name).iterator()));
+                    break;
+                }
+                default:
+                    if (Files.isDirectory(resolve(name))) {
+                        stack.push(new Level(index + 1, List.of(join(name, "")).iterator()));
+                    }
+            }
+        }
+
+        /**
+         * The entries of a directory that pass a filter, joined to its name. Up to
+         * SORT_LIMIT entries are read and sorted; past that the rest follow unsorted, in the
+         * order the file system lists them.
+         */
+        private Iterator<String> list(String name, boolean hidden, DirectoryStream.Filter<Path> filter) {
+            Path parent = resolve(name);
+            if (!Files.isDirectory(parent)) return Collections.emptyIterator();
+            DirectoryStream<Path> entries;
+            try {
+                entries = Files.newDirectoryStream(parent, entry ->
+                        (hidden || !entry.getFileName().toString().startsWith(".")) && filter.accept(entry));
+            } catch (IOException e) {
+                // An unreadable directory matches nothing, as in a shell.
+                return Collections.emptyIterator();
+            }
+            Iterator<Path> rest = entries.iterator();
+            List<String> sorted = new ArrayList<>();
+            try {
+                while (rest.hasNext() && sorted.size() < SORT_LIMIT) {
+                    sorted.add(join(name, rest.next().getFileName().toString()));
+                }
+            } catch (RuntimeException e) {
+                rest = Collections.emptyIterator();
+            }
+            if (!rest.hasNext()) {
+                Glob.close(entries);
+                Collections.sort(sorted);
+                return sorted.iterator();
+            }
+            Collections.sort(sorted);
+            Iterator<String> first = sorted.iterator();
+            Iterator<Path> remaining = rest;
+            open.add(entries);
+            return new Iterator<String>() {
+                @Override
+                public boolean hasNext() {
+                    if (first.hasNext()) return true;
+                    try {
+                        if (remaining.hasNext()) return true;
+                    } catch (RuntimeException e) {
+                        // The directory became unreadable part way; what was listed stands.
+                    }
+                    if (open.remove(entries)) Glob.close(entries);
+                    return false;
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    return first.hasNext() ? first.next() : join(name, remaining.next().getFileName().toString());
+                }
+            };
+        }
+    }
+
+    private static final class Level {
+        final int index;
+        final Iterator<String> names;
+
+        Level(int index, Iterator<String> names) {
+            this.index = index;
+            this.names = names;
+        }
+    }
+
+    private Path resolve(String name) {
+        return name.isEmpty() ? directory : directory.resolve(name);
+    }
+
+    private static String join(String parent, String name) {
+        return parent.isEmpty() || parent.endsWith("/") ? parent + name : parent + "/" + name;
+    }
+
+    private static void close(DirectoryStream<Path> entries) {
+        try {
+            entries.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
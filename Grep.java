@@ -0,0 +1,543 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Stream;
+
+/**
+ * The 'grep' builtin: prints the lines of files, or of its input, that match a pattern.
+ * <p>
+ * Files are memory-mapped and searched as bytes, never decoded as a whole. A file larger
+ * than one chunk is split at line boundaries and its chunks are searched in parallel on a
+ * ForkJoin pool, and with -r many files are searched at once; either way the output comes
+ * out in file and line order. A pattern without regex metacharacters (or any pattern with
+ * -F) is found with Boyer-Moore-Horspool, which skips over most of the bytes it never
+ * needs to look at. Other patterns are compiled once and run line by line.
+ * <p>
+ * Options: -c prints counts instead of lines, -n numbers the lines, -r searches
+ * directories recursively and -F takes the pattern literally. Like grep elsewhere, the
+ * command fails when nothing matched.
+ */
+final class Grep {
+    // Bytes of a file searched by one task.
+    private static final long CHUNK_SIZE = 8L * 1024 * 1024;
+    // Smaller files are read into the heap; mapping them costs more than it saves.
+    private static final int MAP_THRESHOLD = 64 * 1024;
+    private static final int STDIN_BUFFER_SIZE = 64 * 1024;
+    private static final int ALIGN_BUFFER_SIZE = 8 * 1024;
+    // Files searched ahead of the one being printed with -r.
+    private static final int FILES_IN_FLIGHT = 4 * Runtime.getRuntime().availableProcessors();
+
+    private Grep() {
+    }
+
+    static void run(CommandContext ctx, String[] args) {
+        Options options = new Options();
+        String pattern = null;
+        List<String> files = new ArrayList<>();
+        boolean fixed = false;
+
+        for (String arg : args) {
+            if (pattern == null && arg.startsWith("-") && arg.length() > 1) {
+                for (int i = 1; i < arg.length(); i++) {
+                    switch (arg.charAt(i)) {
+                        case 'c':
+                            options.count = true;
+                            break;
+                        case 'n':
+                            options.lineNumbers = true;
+                            break;
+                        case 'r':
+                            options.recursive = true;
+                            break;
+                        case 'F':
+                            fixed = true;
+                            break;
+                        default:
+                            ctx.error("Error: Unknown option '-" + arg.charAt(i) + "' for grep.");
+                            return;
+                    }
+                }
+            } else if (pattern == null) {
+                pattern = arg;
+            } else {
+                files.add(arg);
+            }
+        }
+        if (pattern == null) {
+            ctx.error("Error: 'grep' requires a pattern.");
+            return;
+        }
+        try {
+            options.searcher = Searcher.compile(pattern, fixed);
+        } catch (PatternSyntaxException e) {
+            ctx.error("Error: Invalid pattern: " + e.getDescription() + ".");
+            return;
+        }
+
+        boolean matched;
+        if (files.isEmpty() && !options.recursive) {
+            if (ctx.stdin() == null) {
+                ctx.error("Error: 'grep' requires a file name or piped input.");
+                return;
+            }
+            try {
+                matched = searchStream(ctx.stdin(), ctx.stdout(), options);
+            } catch (IOException e) {
+                ctx.error("Error: Could not read input.");
+                return;
+            }
+        } else {
+            if (files.isEmpty()) files.add(".");
+            options.prefix = options.recursive || files.size() > 1;
+            matched = searchFiles(ctx, files, options);
+        }
+        if (!matched) {
+            ctx.fail();
+        }
+    }
+
+    private static final class Options {
+        boolean count;
+        boolean lineNumbers;
+        boolean recursive;
+        // Whether lines and counts are prefixed with their file name.
+        boolean prefix;
+        Searcher searcher;
+    }
+
+    /**
+     * Searches every named file, expanding directories with -r. Files are searched ahead
+     * on the pool, a bounded number at a time, and printed in order as they finish.
+     */
+    private static boolean searchFiles(CommandContext ctx, List<String> names, Options options) {
+        boolean matched = false;
+        Deque<FileSearch> inFlight = new ArrayDeque<>();
+        for (String name : names) {
+            Path path = ctx.resolve(name);
+            if (Files.isDirectory(path)) {
+                if (!options.recursive) {
+                    ctx.error("Error: '" + name + "' is a directory.");
+                    continue;
+                }
+                try (Stream<Path> tree = Files.find(path, Integer.MAX_VALUE, (file, attrs) -> attrs.isRegularFile())) {
+                    Iterator<Path> found = tree.sorted().iterator();
+                    while (found.hasNext()) {
+                        Path file = found.next();
+                        String label = name.equals(".") ? path.relativize(file).toString() : name + "/" + path.relativize(file);
+                        matched |= submit(ctx, inFlight, new FileSearch(file, label, options));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    ctx.error("Error: Could not search '" + name + "'.");
+                }
+            } else {
+                matched |= submit(ctx, inFlight, new FileSearch(path, name, options));
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            matched |= print(ctx, inFlight.poll());
+        }
+        return matched;
+    }
+
+    private static boolean submit(CommandContext ctx, Deque<FileSearch> inFlight, FileSearch search) {
+        boolean matched = false;
+        if (inFlight.size() == FILES_IN_FLIGHT) {
+            matched = print(ctx, inFlight.poll());
+        }
+        Pools.CPU.execute(search);
+        inFlight.add(search);
+        return matched;
+    }
+
+    private static boolean print(CommandContext ctx, FileSearch search) {
+        List<ForkJoinTask<Matches>> chunks = search.join();
+        if (chunks == null) {
+            ctx.error(search.missing
+                    ? "Error: File '" + search.label + "' not found."
+                    : "Error: Could not read '" + search.label + "'.");
+            return false;
+        }
+        OutputSink out = ctx.stdout();
+        Options options = search.options;
+        String prefix = options.prefix ? search.label + ":" : null;
+        long count = 0;
+        long lineBase = 0;
+        for (ForkJoinTask<Matches> chunk : chunks) {
+            Matches matches = chunk.join();
+            if (!options.count) {
+                matches.print(out, prefix, options.lineNumbers, lineBase);
+            }
+            count += matches.count;
+            lineBase += matches.lines;
+        }
+        if (options.count) {
+            out.println(prefix != null ? prefix + count : Long.toString(count));
+        }
+        return count > 0;
+    }
+
+    /** Reads piped input a buffer at a time, printing matching lines as they come. */
+    private static boolean searchStream(InputStream in, OutputSink out, Options options) throws IOException {
+        byte[] bytes = new byte[STDIN_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int filled = 0;
+        long count = 0;
+        long lineBase = 0;
+        while (true) {
+            if (filled == bytes.length) {
+                // A line longer than the buffer: grow until it fits.
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                buffer = ByteBuffer.wrap(bytes);
+            }
+            int read = in.read(bytes, filled, bytes.length - filled);
+            // A closed output (e.g. '| head') ends the search; there is no one left to tell.
+            if (read < 0 || out.checkError()) break;
+            filled += read;
+            // Only whole lines are searched; a partial one waits for the rest.
+            int complete = filled;
+            while (complete > 0 && bytes[complete - 1] != '\n') complete--;
+            if (complete == 0) continue;
+
+            Matches matches = Matches.search(buffer, 0, complete, options);
+            if (!options.count) matches.print(out, null, options.lineNumbers, lineBase);
+            count += matches.count;
+            lineBase += matches.lines;
+            System.arraycopy(bytes, complete, bytes, 0, filled - complete);
+            filled -= complete;
+        }
+        if (filled > 0) {
+            Matches matches = Matches.search(buffer, 0, filled, options);
+            if (!options.count) matches.print(out, null, options.lineNumbers, lineBase);
+            count += matches.count;
+        }
+        if (options.count) out.println(Long.toString(count));
+        return count > 0;
+    }
+
+    /**
+     * Splits one file into line-aligned chunks and starts a search of each. Yields the
+     * chunk searches in file order, or null if the file can't be read.
+     */
+    private static final class FileSearch extends RecursiveTask<List<ForkJoinTask<Matches>>> {
+        final Path path;
+        final String label;
+        final Options options;
+        boolean missing;
+
+        FileSearch(Path path, String label, Options options) {
+            this.path = path;
+            this.label = label;
+            this.options = options;
+        }
+
+        @Override
+        protected List<ForkJoinTask<Matches>> compute() {
+            List<ForkJoinTask<Matches>> chunks = new ArrayList<>();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size <= MAP_THRESHOLD) {
+                    ByteBuffer bytes = ByteBuffer.allocate((int) size);
+                    while (bytes.hasRemaining() && channel.read(bytes, bytes.position()) >= 0) {
+                    }
+                    bytes.flip();
+                    chunks.add(new ChunkSearch(bytes, options));
+                } else {
+                    long start = 0;
+                    while (start < size) {
+                        long end = start + CHUNK_SIZE >= size ? size : lineEnd(channel, start + CHUNK_SIZE, size);
+                        if (end - start > Integer.MAX_VALUE) throw new IOException("Line too long to search.");
+                        // The mapping stays valid after the channel is closed.
+                        chunks.add(new ChunkSearch(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start), options));
+                        start = end;
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                missing = true;
+                return null;
+            } catch (IOException e) {
+                return null;
+            }
+            // The first chunk is searched here; the rest are picked up by idle workers.
+            for (int i = chunks.size() - 1; i > 0; i--) {
+                chunks.get(i).fork();
+            }
+            chunks.get(0).invoke();
+            return chunks;
+        }
+
+        /** The position just past the first newline at or after {@code from}, or the end of the file. */
+        private static long lineEnd(FileChannel channel, long from, long size) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(ALIGN_BUFFER_SIZE);
+            long position = from;
+            while (position < size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read <= 0) break;
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') return position + i + 1;
+                }
+                position += read;
+            }
+            return size;
+        }
+    }
+
+    private static final class ChunkSearch extends RecursiveTask<Matches> {
+        private final ByteBuffer buffer;
+        private final Options options;
+
+        ChunkSearch(ByteBuffer buffer, Options options) {
+            this.buffer = buffer;
+            this.options = options;
+        }
+
+        @Override
+        protected Matches compute() {
+            return Matches.search(buffer, 0, buffer.limit(), options);
+        }
+    }
+
+    /** The matching lines of one chunk, as offsets into its buffer. */
+    private static final class Matches {
+        final ByteBuffer buffer;
+        int count;
+        // Lines in the chunk, counted only when lines are numbered.
+        long lines;
+        private int[] starts;
+        private int[] ends;
+        private int[] lineNumbers;
+
+        private Matches(ByteBuffer buffer, boolean keepLines) {
+            this.buffer = buffer;
+            if (keepLines) {
+                starts = new int[16];
+                ends = new int[16];
+                lineNumbers = new int[16];
+            }
+        }
+
+        static Matches search(ByteBuffer buffer, int from, int to, Options options) {
+            Matches matches = new Matches(buffer, !options.count);
+            Searcher searcher = options.searcher;
+            int position = from;
+            int counted = from;
+            int line = 0;
+            while (position < to) {
+                int start = searcher.nextMatch(buffer, position, to);
+                if (start < 0) break;
+                int end = Searcher.lineEnd(buffer, start, to);
+                if (options.lineNumbers) {
+                    line += countLines(buffer, counted, start);
+                    counted = start;
+                }
+                matches.add(start, end, line);
+                position = end + 1;
+            }
+            if (options.lineNumbers) {
+                matches.lines = line + countLines(buffer, counted, to);
+            }
+            return matches;
+        }
+
+        private void add(int start, int end, int line) {
+            if (starts != null) {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                    lineNumbers = Arrays.copyOf(lineNumbers, count * 2);
+                }
+                starts[count] = start;
+                ends[count] = end;
+                lineNumbers[count] = line;
+            }
+            count++;
+        }
+
+        void print(OutputSink out, String prefix, boolean numbered, long lineBase) {
+            for (int i = 0; i < count; i++) {
+                if (prefix != null) out.print(prefix);
+                if (numbered) {
+                    out.print(Long.toString(lineBase + lineNumbers[i] + 1));
+                    out.write(':');
+                }
+                out.write(buffer, starts[i], ends[i] - starts[i]);
+                out.write('\n');
+            }
+        }
+
+        private static int countLines(ByteBuffer buffer, int from, int to) {
+            int lines = 0;
+            for (int i = from; i < to; i++) {
+                if (buffer.get(i) == '\n') lines++;
+            }
+            return lines;
+        }
+    }
+
+    /** Finds matching lines in a range of bytes. Instances are safe to share between threads. */
+    abstract static class Searcher {
+        private static final String METACHARACTERS = "\\.[]{}()*+?^$|";
+
+        /** The literal fast path unless the pattern needs the regex engine. */
+        static Searcher compile(String pattern, boolean fixed) {
+            boolean literal = fixed;
+            if (!literal) {
+                literal = true;
+                for (int i = 0; i < pattern.length(); i++) {
+                    if (METACHARACTERS.indexOf(pattern.charAt(i)) >= 0) {
+                        literal = false;
+                        break;
+                    }
+                }
+            }
+            return literal
+                    ? new Literal(pattern.getBytes(Charset.defaultCharset()))
+                    : new Regex(Pattern.compile(pattern));
+        }
+
+        /** The start of the first line in [from, to) that matches, or -1 if none does. */
+        abstract int nextMatch(ByteBuffer buffer, int from, int to);
+
+        /** The position of the newline ending the line at {@code start}, or {@code to}. */
+        static int lineEnd(ByteBuffer buffer, int start, int to) {
+            int i = start;
+            while (i < to && buffer.get(i) != '\n') i++;
+            return i;
+        }
+
+        static int lineStart(ByteBuffer buffer, int from, int position) {
+            int i = position;
+            while (i > from && buffer.get(i - 1) != '\n') i--;
+            return i;
+        }
+    }
+
+    /** Boyer-Moore-Horspool over raw bytes. */
+    private static final class Literal extends Searcher {
+        private final byte[] needle;
+        private final int[] shift = new int[256];
+
+        Literal(byte[] needle) {
+            this.needle = needle;
+            Arrays.fill(shift, needle.length);
+            for (int i = 0; i < needle.length - 1; i++) {
+                shift[needle[i] & 0xff] = needle.length - 1 - i;
+            }
+        }
+
+        @Override
+        int nextMatch(ByteBuffer buffer, int from, int to) {
+            int length = needle.length;
+            if (length == 0) return from < to ? from : -1;
+            int last = length - 1;
+            byte lastByte = needle[last];
+            int i = from;
+            while (i + length <= to) {
+                byte b = buffer.get(i + last);
+                if (b == lastByte && matchesAt(buffer, i, last)) {
+                    return lineStart(buffer, from, i);
+                }
+                i += shift[b & 0xff];
+            }
+            return -1;
+        }
+
+        private boolean matchesAt(ByteBuffer buffer, int position, int length) {
+            for (int j = 0; j < length; j++) {
+                if (buffer.get(position + j) != needle[j]) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A compiled regex, tried against one line at a time. ASCII lines are matched in place
+     * through a character view of the bytes; only lines with other bytes are decoded.
+     */
+    private static final class Regex extends Searcher {
+        private final Pattern pattern;
+        private final ThreadLocal<LineView> views = ThreadLocal.withInitial(LineView::new);
+
+        Regex(Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override
+        int nextMatch(ByteBuffer buffer, int from, int to) {
+            LineView view = views.get();
+            if (view.matcher == null) view.matcher = pattern.matcher("");
+            int start = from;
+            while (start < to) {
+                int end = lineEnd(buffer, start, to);
+                CharSequence line = view.set(buffer, start, end) ? view : decode(buffer, start, end);
+                if (view.matcher.reset(line).find()) return start;
+                start = end + 1;
+            }
+            return -1;
+        }
+
+        private static String decode(ByteBuffer buffer, int start, int end) {
+            byte[] bytes = new byte[end - start];
+            buffer.get(start, bytes);
+            return new String(bytes, Charset.defaultCharset());
+        }
+    }
+
+    /** A line of ASCII bytes seen as characters, reused line after line. */
+    private static final class LineView implements CharSequence {
+        Matcher matcher;
+        private ByteBuffer buffer;
+        private int start;
+        private int length;
+
+        /** Points the view at a line; false if the line has non-ASCII bytes and must be decoded. */
+        boolean set(ByteBuffer buffer, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (buffer.get(i) < 0) return false;
+            }
+            this.buffer = buffer;
+            this.start = start;
+            this.length = end - start;
+            return true;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) buffer.get(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return toString().substring(from, to);
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[length];
+            buffer.get(start, bytes);
+            return new String(bytes, Charset.defaultCharset());
+        }
+    }
+}
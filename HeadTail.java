@@ -0,0 +1,361 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The 'head' and 'tail' builtins, which print the first or last lines of files or of
+ * their input without reading more than they have to.
+ * <p>
+ * head stops reading at the last line it prints, which in a pipeline also stops the
+ * commands feeding it. tail reads a file backwards from the end in blocks, with
+ * positional reads, until it has seen enough lines, then copies just that part. With -f
+ * it keeps following the file: it waits on a WatchService (or polls where there is none),
+ * copies only the bytes added since, starts over when the file is truncated, and switches
+ * to the new file when the name is rotated to a different one. At the console it stops
+ * when the user presses Enter.
+ */
+final class HeadTail {
+    private static final long DEFAULT_LINES = 10;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    // How long tail -f waits for a watch event before checking the file anyway.
+    private static final long FOLLOW_POLL_MILLIS = 500;
+
+    private HeadTail() {
+    }
+
+    static void head(CommandContext ctx, String[] args) {
+        Arguments arguments = Arguments.parse(ctx, "head", args, false);
+        if (arguments == null) return;
+        if (arguments.files.isEmpty()) {
+            if (ctx.stdin() == null) {
+                ctx.error("Error: 'head' requires a file name or piped input.");
+                return;
+            }
+            try {
+                head(ctx.stdin(), ctx.stdout(), arguments.lines);
+            } catch (IOException e) {
+                ctx.error("Error: Could not read input.");
+            }
+            return;
+        }
+        for (int i = 0; i < arguments.files.size(); i++) {
+            String name = arguments.files.get(i);
+            try (InputStream in = Files.newInputStream(ctx.resolve(name))) {
+                header(ctx.stdout(), arguments, i);
+                head(in, ctx.stdout(), arguments.lines);
+            } catch (NoSuchFileException e) {
+                ctx.error("Error: File '" + name + "' not found.");
+            } catch (IOException e) {
+                ctx.error("Error: Could not read '" + name + "'.");
+            }
+        }
+    }
+
+    static void tail(CommandContext ctx, String[] args) {
+        Arguments arguments = Arguments.parse(ctx, "tail", args, true);
+        if (arguments == null) return;
+        if (arguments.files.isEmpty()) {
+            if (arguments.follow) {
+                ctx.error("Error: 'tail -f' requires a file name.");
+            } else if (ctx.stdin() == null) {
+                ctx.error("Error: 'tail' requires a file name or piped input.");
+            } else {
+                try {
+                    tail(ctx.stdin(), ctx.stdout(), arguments.lines);
+                } catch (IOException e) {
+                    ctx.error("Error: Could not read input.");
+                }
+            }
+            return;
+        }
+        if (arguments.follow && arguments.files.size() > 1) {
+            ctx.error("Error: 'tail -f' follows a single file.");
+            return;
+        }
+        for (int i = 0; i < arguments.files.size(); i++) {
+            String name = arguments.files.get(i);
+            Path path = ctx.resolve(name);
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                ctx.error("Error: File '" + name + "' not found.");
+                continue;
+            } catch (IOException e) {
+                ctx.error("Error: Could not read '" + name + "'.");
+                continue;
+            }
+            try {
+                header(ctx.stdout(), arguments, i);
+                long end = channel.size();
+                CommandLineInterpreter.copyRange(channel, lastLines(channel, end, arguments.lines), end, ctx.stdout());
+                if (arguments.follow) {
+                    // follow takes the channel over and closes it when done.
+                    FileChannel followed = channel;
+                    channel = null;
+                    follow(ctx, path, followed, end);
+                }
+            } catch (IOException e) {
+                ctx.error("Error: Could not read '" + name + "'.");
+            } finally {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    /** Options shared by head and tail: -n N (or -N) and, for tail, -f. */
+    private static final class Arguments {
+        long lines = DEFAULT_LINES;
+        boolean follow;
+        final List<String> files = new ArrayList<>();
+
+        static Arguments parse(CommandContext ctx, String command, String[] args, boolean followAllowed) {
+            Arguments arguments = new Arguments();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                String count = null;
+                if (arg.equals("-n")) {
+                    count = i + 1 < args.length ? args[++i] : "";
+                } else if (arg.startsWith("-n")) {
+                    count = arg.substring(2);
+                } else if (arg.equals("-f") && followAllowed) {
+                    arguments.follow = true;
+                    continue;
+                } else if (arg.length() > 1 && arg.startsWith("-") && Character.isDigit(arg.charAt(1))) {
+                    count = arg.substring(1);
+                } else if (arg.startsWith("-") && arg.length() > 1) {
+                    ctx.error("Error: Unknown option '" + arg + "' for " + command + ".");
+                    return null;
+                } else {
+                    arguments.files.add(arg);
+                    continue;
+                }
+                try {
+                    arguments.lines = Long.parseLong(count);
+                    if (arguments.lines < 0) throw new NumberFormatException();
+                } catch (NumberFormatException e) {
+                    ctx.error("Error: Invalid line count '" + count + "'.");
+                    return null;
+                }
+            }
+            return arguments;
+        }
+    }
+
+    /** With several files, each one's lines are preceded by its name. */
+    private static void header(OutputSink out, Arguments arguments, int index) {
+        if (arguments.files.size() < 2) return;
+        if (index > 0) out.println();
+        out.println("==> " + arguments.files.get(index) + " <==");
+    }
+
+    private static void head(InputStream in, OutputSink out, long lines) throws IOException {
+        if (lines == 0) return;
+        byte[] buffer = new byte[BLOCK_SIZE];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == '\n' && --lines == 0) {
+                    out.write(buffer, 0, i + 1);
+                    return;
+                }
+            }
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * Where the last {@code lines} lines of the first {@code end} bytes of a file start,
+     * found by reading blocks backwards from the end.
+     */
+    private static long lastLines(FileChannel channel, long end, long lines) throws IOException {
+        if (lines == 0) return end;
+        ByteBuffer block = ByteBuffer.allocate((int) Math.min(BLOCK_SIZE, Math.max(end, 1)));
+        long position = end;
+        long found = 0;
+        while (position > 0) {
+            int length = (int) Math.min(block.capacity(), position);
+            position -= length;
+            block.clear().limit(length);
+            while (block.hasRemaining()) {
+                if (channel.read(block, position + block.position()) < 0) break;
+            }
+            for (int i = length - 1; i >= 0; i--) {
+                // A newline ending the file closes the last line rather than starting another.
+                if (block.get(i) == '\n' && position + i != end - 1 && ++found == lines) {
+                    return position + i + 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The last lines of a stream. The input is kept in a buffer that is cut back to just the
+     * last lines whenever it doubles, so memory depends on the lines kept, not the input.
+     */
+    private static void tail(InputStream in, OutputSink out, long lines) throws IOException {
+        byte[] data = new byte[BLOCK_SIZE];
+        int length = 0;
+        int trimAt = 4 * BLOCK_SIZE;
+        int read;
+        while ((read = in.read(data, length, data.length - length)) >= 0) {
+            length += read;
+            if (length < data.length) continue;
+            if (length >= trimAt) {
+                int start = lastLines(data, length, lines);
+                if (start > 0) {
+                    System.arraycopy(data, start, data, 0, length - start);
+                    length -= start;
+                }
+                trimAt = Math.max(trimAt, 2 * length);
+            }
+            if (length == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+        }
+        int start = lastLines(data, length, lines);
+        out.write(data, start, length - start);
+    }
+
+    private static int lastLines(byte[] data, int length, long lines) {
+        if (lines == 0) return length;
+        long found = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            if (data[i] == '\n' && i != length - 1 && ++found == lines) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Prints whatever is appended to a file from {@code position} on, until the command is
+     * interrupted, the user presses Enter at the console, the session ends or nobody reads
+     * the output any more.
+     */
+    private static void follow(CommandContext ctx, Path path, FileChannel channel, long position) throws IOException {
+        OutputSink out = ctx.stdout();
+        out.flush();
+        Object fileKey = fileKey(path);
+        WatchService watcher = null;
+        try {
+            watcher = watch(path);
+            while (!Thread.currentThread().isInterrupted() && !out.checkError() && ctx.session().isRunning()
+                    && !stopRequested(ctx)) {
+                long size = channel.size();
+                if (size < position) {
+                    // Truncated in place, as copytruncate log rotation does.
+                    position = 0;
+                }
+                if (size > position) {
+                    CommandLineInterpreter.copyRange(channel, position, size, out);
+                    position = size;
+                    out.flush();
+                    continue;
+                }
+                // Everything in the open file is printed. If the name now belongs to another
+                // file, the log was rotated: carry on with the new one from its start.
+                Object currentKey = fileKey(path);
+                if (currentKey != null && !currentKey.equals(fileKey)) {
+                    FileChannel next;
+                    try {
+                        next = FileChannel.open(path, StandardOpenOption.READ);
+                    } catch (NoSuchFileException e) {
+                        next = null;
+                    }
+                    if (next != null) {
+                        channel.close();
+                        channel = next;
+                        fileKey = currentKey;
+                        position = 0;
+                        continue;
+                    }
+                }
+                await(watcher);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channel.close();
+            if (watcher != null) watcher.close();
+        }
+    }
+
+    /** Whether something was typed at the console, which is taken as the user asking to stop. */
+    private static boolean stopRequested(CommandContext ctx) throws IOException {
+        InputStream console = ctx.session().console();
+        if (console == null || console.available() == 0) return false;
+        // What was typed only stops the command; it isn't read as the next command line.
+        console.skip(console.available());
+        return true;
+    }
+
+    /** A watch on the file's directory, or null to fall back to polling. */
+    private static WatchService watch(Path path) {
+        Path directory = path.toAbsolutePath().getParent();
+        if (directory == null) return null;
+        WatchService watcher = null;
+        try {
+            watcher = path.getFileSystem().newWatchService();
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            return watcher;
+        } catch (IOException | UnsupportedOperationException e) {
+            if (watcher != null) {
+                try {
+                    watcher.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    private static void await(WatchService watcher) throws InterruptedException {
+        if (watcher == null) {
+            Thread.sleep(FOLLOW_POLL_MILLIS);
+            return;
+        }
+        try {
+            WatchKey key = watcher.poll(FOLLOW_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (key != null) {
+                // Any event in the directory is reason enough to look at the file again.
+                key.pollEvents();
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException e) {
+            Thread.sleep(FOLLOW_POLL_MILLIS);
+        }
+    }
+
+    /** Identifies the file behind a name (its inode on Unix), or null if it has none right now. */
+    private static Object fileKey(Path path) {
+        try {
+            return Objects.requireNonNullElse(
+                    Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey(), "");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Daemon mode: one long-lived JVM serving many sessions over a Unix domain socket, so
+ * scripts pay for JVM startup once instead of on every call.
+ * <p>
+ * The protocol is plain text. A client sends one command per line and receives the
+ * command's output on the same connection; the session ends on 'exit' or when the
+ * client closes its side. Any client that can speak to a Unix socket works, for example
+ * {@code nc -U}, as well as the thin client in {@link #connect(Path)}.
+ */
+final class InterpreterServer {
+    private static final int CLIENT_BUFFER_SIZE = 64 * 1024;
+
+    private InterpreterServer() {
+    }
+
+    /**
+     * Listens on the socket until the process is stopped. Each connection gets its own
+     * session, starting in the given directory, on its own thread. Refuses to start if the
+     * path is anything but a socket, or if another server already answers on it.
+     */
+    static void serve(Path socketPath, Path startDirectory) throws IOException {
+        removeStaleSocket(socketPath);
+        ExecutorService sessions = newSessionExecutor();
+        Object bound = null;
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            bound = fileKey(socketPath);
+            System.out.println("Listening on " + socketPath);
+            while (true) {
+                SocketChannel client = server.accept();
+                sessions.execute(() -> serveSession(client, startDirectory));
+            }
+        } finally {
+            sessions.shutdownNow();
+            // Only the socket this process bound; the name may belong to another server by now.
+            if (bound != null && bound.equals(fileKey(socketPath))) {
+                Files.deleteIfExists(socketPath);
+            }
+        }
+    }
+
+    /**
+     * Removes a socket left behind by a server that is gone, since it would make bind fail.
+     * Anything else at the path, and a socket some server still answers on, is left alone.
+     */
+    private static void removeStaleSocket(Path socketPath) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(socketPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (!attributes.isOther()) {
+            throw new IOException("'" + socketPath + "' exists and is not a socket.");
+        }
+        try (SocketChannel ignored = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+            throw new IOException("A server is already listening on '" + socketPath + "'.");
+        } catch (ConnectException e) {
+            // Nobody listens: the server that made it has exited.
+        }
+        Files.delete(socketPath);
+    }
+
+    /** What identifies the file at the path (device and inode on Unix), or null if there is none. */
+    private static Object fileKey(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void serveSession(SocketChannel client, Path startDirectory) {
+        Session session = new Session(startDirectory);
+        try (SocketChannel channel = client;
+             OutputSink out = OutputSink.of(channel);
+             OutputSink err = out.share()) {
+            CommandContext ctx = new CommandContext(session, null, out, err);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(channel), Charset.defaultCharset()));
+            String line;
+            while (session.isRunning() && (line = reader.readLine()) != null) {
+                String input = line.trim();
+                if (input.isEmpty()) continue;
+                CommandLineInterpreter.run(ctx, input);
+                err.flush();
+                out.flush();
+            }
+            session.jobs().finishAll();
+        } catch (IOException e) {
+            // The client went away mid-session; there is nobody left to report to.
+        }
+    }
+
+    /**
+     * Forwards this process's stdin to the server and the server's replies to stdout,
+     * until the server closes the connection.
+     */
+    static void connect(Path socketPath) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+            Thread forwarder = new Thread(() -> forwardInput(System.in, channel), "client-stdin");
+            forwarder.setDaemon(true);
+            forwarder.start();
+
+            FileChannel stdout = new FileOutputStream(FileDescriptor.out).getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CLIENT_BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    stdout.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+    }
+
+    private static void forwardInput(InputStream in, SocketChannel channel) {
+        byte[] bytes = new byte[CLIENT_BUFFER_SIZE];
+        try {
+            int read;
+            while ((read = in.read(bytes)) != -1) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            // Tells the server there are no more commands; replies keep flowing back.
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            // The server closed the connection first, e.g. after 'exit'.
+        }
+    }
+
+    /**
+     * One virtual thread per session when the runtime has them (JDK 21+), otherwise a
+     * cached pool of daemon platform threads.
+     */
+    private static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "session");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
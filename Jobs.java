@@ -0,0 +1,195 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * The background jobs of one session, started with '&' and managed with 'jobs', 'wait'
+ * and 'fg'. A job runs on a pool thread and writes to the session's output through
+ * buffers of its own, flushed as they fill and when the job ends, so it never shares a
+ * buffer with the foreground command. It runs in a session of its own, starting in the
+ * current directory, so a 'cd' or 'exit' in it leaves the foreground alone. Jobs are
+ * numbered from 1, and numbering starts over once every job has been reported.
+ */
+final class Jobs {
+    // Shared by every session; also runs the commands of 'parallel'.
+    static final ExecutorService RUNNERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "job-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final TreeMap<Integer, Job> jobs = new TreeMap<>();
+
+    /** One background command list and its exit status once it ends. */
+    private static final class Job {
+        final int id;
+        final String text;
+        final CompletableFuture<Integer> status;
+
+        Job(int id, String text, CompletableFuture<Integer> status) {
+            this.id = id;
+            this.text = text;
+            this.status = status;
+        }
+
+        String state() {
+            if (!status.isDone()) return "Running";
+            int exit = status.join();
+            return exit == 0 ? "Done" : "Exit " + exit;
+        }
+    }
+
+    /**
+     * Starts {@code body}, which returns an exit status, as a job without input, in a
+     * session of its own that shares this table, and with its own buffers on the context's
+     * output and errors. Prints the job's number.
+     */
+    void start(CommandContext ctx, String text, ToIntFunction<CommandContext> body) {
+        OutputSink out = ctx.stdout().share();
+        OutputSink err = ctx.stderr().share();
+        CommandContext job = new CommandContext(new Session(ctx.currentDirectory(), this), null, out, err);
+        int id;
+        synchronized (jobs) {
+            id = jobs.isEmpty() ? 1 : jobs.lastKey() + 1;
+            ctx.stdout().println("[" + id + "] " + text);
+            ctx.stdout().flush();
+            CompletableFuture<Integer> status = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return body.applyAsInt(job);
+                } finally {
+                    err.close();
+                    out.close();
+                }
+            }, RUNNERS);
+            jobs.put(id, new Job(id, text, status));
+        }
+    }
+
+    /** The 'jobs' builtin: lists every job, then forgets those that have ended. */
+    static void list(CommandContext ctx, String[] args) {
+        Jobs table = ctx.session().jobs();
+        synchronized (table.jobs) {
+            List<Integer> ended = new ArrayList<>();
+            for (Job job : table.jobs.values()) {
+                String state = job.state();
+                ctx.stdout().println("[" + job.id + "] " + state + "\t" + job.text);
+                if (!state.equals("Running")) ended.add(job.id);
+            }
+            table.jobs.keySet().removeAll(ended);
+        }
+    }
+
+    /**
+     * The 'wait' builtin: waits for the jobs given, or for all of them, and fails if any of
+     * them failed.
+     */
+    static void await(CommandContext ctx, String[] args) {
+        Jobs table = ctx.session().jobs();
+        List<Job> waited = new ArrayList<>();
+        synchronized (table.jobs) {
+            if (args.length == 0) {
+                waited.addAll(table.jobs.values());
+            } else {
+                for (String arg : args) {
+                    Job job = table.find(arg);
+                    if (job == null) {
+                        ctx.error("Error: No such job '" + arg + "'.");
+                        return;
+                    }
+                    waited.add(job);
+                }
+            }
+        }
+        for (Job job : waited) {
+            if (!table.finish(ctx, job)) return;
+        }
+    }
+
+    /** The 'fg' builtin: brings a job, the latest by default, to the foreground and waits for it. */
+    static void foreground(CommandContext ctx, String[] args) {
+        Jobs table = ctx.session().jobs();
+        Job job;
+        synchronized (table.jobs) {
+            if (args.length == 0) {
+                job = table.jobs.isEmpty() ? null : table.jobs.lastEntry().getValue();
+                if (job == null) {
+                    ctx.error("Error: No current job.");
+                    return;
+                }
+            } else {
+                job = table.find(args[0]);
+                if (job == null) {
+                    ctx.error("Error: No such job '" + args[0] + "'.");
+                    return;
+                }
+            }
+        }
+        ctx.stdout().println(job.text);
+        ctx.stdout().flush();
+        table.finish(ctx, job);
+    }
+
+    /**
+     * Waits for every job still running, so that none is cut off, or left writing to
+     * closed output, when the session ends.
+     */
+    void finishAll() {
+        List<Job> running;
+        synchronized (jobs) {
+            running = new ArrayList<>(jobs.values());
+        }
+        for (Job job : running) {
+            try {
+                job.status.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // The job is over either way, which is all that is waited for here.
+            }
+        }
+    }
+
+    /** A job by number, written as "2" or "%2", or null. */
+    private Job find(String arg) {
+        String number = arg.startsWith("%") ? arg.substring(1) : arg;
+        try {
+            return jobs.get(Integer.parseInt(number));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Waits for a job and forgets it, failing the command if the job failed. Returns false
+     * if the wait was interrupted.
+     */
+    private boolean finish(CommandContext ctx, Job job) {
+        try {
+            int status = job.status.get();
+            if (status != 0) ctx.fail();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ctx.error("Error: Interrupted while waiting for job " + job.id + ".");
+            return false;
+        } catch (ExecutionException e) {
+            ctx.error("Error: Job " + job.id + " failed: " + e.getCause().getMessage());
+        }
+        synchronized (jobs) {
+            jobs.remove(job.id);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,192 @@
+import java.util.Arrays;
+
+/**
+ * Splits a command line into words and operators in a single pass.
+ * <p>
+ * Words follow the usual shell rules: text in single quotes is taken literally, double
+ * quotes allow {@code \"} and {@code \\} escapes, and a backslash outside quotes escapes
+ * the next character. Operators end a word even without surrounding spaces, so
+ * {@code ls>out} is three tokens, while a quoted {@code '>'} is just a word.
+ * <p>
+ * A word with an unquoted {@code *}, {@code ?} or {@code [} is also kept as a glob
+ * pattern for {@link Glob}, in which any wildcard characters that were quoted or escaped
+ * are escaped again, so {@code "my *"*.txt} only treats the second star as a wildcard.
+ * <p>
+ * A lexer is reused line after line: its token arrays only grow, and a word without
+ * quotes or escapes is a plain substring of the input, so lexing a typical line allocates
+ * nothing besides the word strings themselves. Instances are not thread-safe.
+ */
+final class Lexer {
+    enum Kind {
+        WORD(null),
+        PIPE("|"),
+        OR("||"),
+        AND("&&"),
+        BACKGROUND("&"),
+        SEMICOLON(";"),
+        REDIRECT_IN("<"),
+        REDIRECT_OUT(">"),
+        APPEND_OUT(">>"),
+        REDIRECT_ERR("2>"),
+        APPEND_ERR("2>>");
+
+        final String symbol;
+
+        Kind(String symbol) {
+            this.symbol = symbol;
+        }
+    }
+
+    private Kind[] kinds = new Kind[16];
+    private String[] words = new String[16];
+    private String[] globs = new String[16];
+    private int count;
+    private final StringBuilder builder = new StringBuilder();
+    private final StringBuilder pattern = new StringBuilder();
+
+    /**
+     * Tokenizes a line, replacing the previous line's tokens.
+     *
+     * @return the number of tokens
+     * @throws IllegalArgumentException if a quote is left open
+     */
+    int tokenize(String line) {
+        count = 0;
+        int length = line.length();
+        int i = 0;
+        while (i < length) {
+            char c = line.charAt(i);
+            char next = i + 1 < length ? line.charAt(i + 1) : 0;
+            switch (c) {
+                case ' ':
+                case '\t':
+                    i++;
+                    break;
+                case '|':
+                    i += add(next == '|' ? Kind.OR : Kind.PIPE);
+                    break;
+                case '&':
+                    i += add(next == '&' ? Kind.AND : Kind.BACKGROUND);
+                    break;
+                case ';':
+                    i += add(Kind.SEMICOLON);
+                    break;
+                case '<':
+                    i += add(Kind.REDIRECT_IN);
+                    break;
+                case '>':
+                    i += add(next == '>' ? Kind.APPEND_OUT : Kind.REDIRECT_OUT);
+                    break;
+                case '2':
+                    // "2>" only redirects stderr at the start of a word; "file2>x" is a word then ">".
+                    if (next == '>') {
+                        boolean append = i + 2 < length && line.charAt(i + 2) == '>';
+                        i += add(append ? Kind.APPEND_ERR : Kind.REDIRECT_ERR);
+                        break;
+                    }
+                    i = word(line, i);
+                    break;
+                default:
+                    i = word(line, i);
+            }
+        }
+        return count;
+    }
+
+    Kind kind(int index) {
+        return kinds[index];
+    }
+
+    /** The unquoted text of a word token, or null for an operator. */
+    String word(int index) {
+        return words[index];
+    }
+
+    /** The glob pattern of a word token with unquoted wildcards, or null. */
+    String glob(int index) {
+        return globs[index];
+    }
+
+    private int word(String line, int start) {
+        int length = line.length();
+        int i = start;
+        boolean plain = true;
+        boolean glob = false;
+        while (i < length) {
+            char c = line.charAt(i);
+            if (c == ' ' || c == '\t' || c == '|' || c == '&' || c == ';' || c == '<' || c == '>') {
+                break;
+            }
+            if (c == '\'' || c == '"' || c == '\\') {
+                if (plain) {
+                    builder.setLength(0);
+                    builder.append(line, start, i);
+                    pattern.setLength(0);
+                    pattern.append(line, start, i);
+                    plain = false;
+                }
+                int quoted = builder.length();
+                if (c == '\'') {
+                    int close = line.indexOf('\'', i + 1);
+                    if (close < 0) throw new IllegalArgumentException("Unterminated single quote.");
+                    builder.append(line, i + 1, close);
+                    i = close + 1;
+                } else if (c == '"') {
+                    i = doubleQuoted(line, i + 1);
+                } else {
+                    // A trailing backslash has nothing to escape and stays literal.
+                    builder.append(i + 1 < length ? line.charAt(i + 1) : '\\');
+                    i += 2;
+                }
+                for (int q = quoted; q < builder.length(); q++) {
+                    char literal = builder.charAt(q);
+                    if ("*?[]{}\\".indexOf(literal) >= 0) pattern.append('\\');
+                    pattern.append(literal);
+                }
+            } else {
+                if (c == '*' || c == '?' || c == '[') glob = true;
+                if (!plain) {
+                    builder.append(c);
+                    pattern.append(c);
+                }
+                i++;
+            }
+        }
+        String word = plain ? line.substring(start, i) : builder.toString();
+        append(Kind.WORD, word, glob ? (plain ? word : pattern.toString()) : null);
+        return Math.min(i, length);
+    }
+
+    private int doubleQuoted(String line, int i) {
+        int length = line.length();
+        while (i < length) {
+            char c = line.charAt(i);
+            if (c == '"') return i + 1;
+            if (c == '\\' && i + 1 < length && (line.charAt(i + 1) == '"' || line.charAt(i + 1) == '\\')) {
+                builder.append(line.charAt(i + 1));
+                i += 2;
+            } else {
+                builder.append(c);
+                i++;
+            }
+        }
+        throw new IllegalArgumentException("Unterminated double quote.");
+    }
+
+    private int add(Kind kind) {
+        append(kind, null, null);
+        return kind.symbol.length();
+    }
+
+    private void append(Kind kind, String word, String glob) {
+        if (count == kinds.length) {
+            kinds = Arrays.copyOf(kinds, count * 2);
+            words = Arrays.copyOf(words, count * 2);
+            globs = Arrays.copyOf(globs, count * 2);
+        }
+        kinds[count] = kind;
+        words[count] = word;
+        globs[count] = glob;
+        count++;
+    }
+}
@@ -0,0 +1,574 @@
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The 'ls' builtin. Entries are listed in name order, or by size (-S) or modification
+ * time (-t), reversed with -r; -U keeps the order the file system returns them in.
+ * Without a path the current directory is listed. Paths that are not directories are
+ * listed first, as entries of their own, then each directory under a "name:" heading
+ * when there is more than one path.
+ * <p>
+ * A single directory is streamed: unsorted entries are printed as they are read, sorted
+ * ones go through an {@link EntrySorter} that spills to disk past a fixed number of
+ * entries, and {@code --top N} keeps only the best N in a heap. So listing a directory of
+ * any size needs bounded memory. With -R the whole tree is walked on a ForkJoin pool, one
+ * task per directory, while the caller prints finished directories depth first.
+ * Attributes come from a single readAttributes call per entry, read in parallel batches.
+ * <p>
+ * Directories read in full are kept in a {@link DirectoryCache} shared by all sessions;
+ * --no-cache reads from disk regardless.
+ */
+final class Ls {
+    // Directories with more entries than this have their attributes read by several tasks.
+    private static final int ATTRIBUTE_BATCH = 512;
+    // Entries read from a directory before their attributes are fetched and they move on.
+    private static final int STREAM_BATCH = 4096;
+    // Entries a sorted listing keeps in memory before spilling a run to disk.
+    private static final int SORT_RUN_SIZE = 100_000;
+    private static final DirectoryCache CACHE = new DirectoryCache(1_000_000, 128L * 1024 * 1024);
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+    // Column widths while streaming, when the widest value isn't known yet.
+    private static final Widths STREAMING_WIDTHS = new Widths(8, 8, 10);
+
+    private Ls() {
+    }
+
+    static void run(CommandContext ctx, String[] args) {
+        Options options = new Options();
+        boolean reverseOrder = false;
+        char sortKey = 'n';
+        List<String> paths = new ArrayList<>();
+
+        // Flags may be given separately or combined, as in -la.
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--top") || option.startsWith("--top=")) {
+                String value = option.equals("--top") ? (i + 1 < args.length ? args[++i] : "") : option.substring(6);
+                try {
+                    options.top = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    options.top = 0;
+                }
+                if (options.top <= 0) {
+                    ctx.error("Error: --top requires a positive number.");
+                    return;
+                }
+                continue;
+            }
+            if (option.equals("--no-cache")) {
+                options.cached = false;
+                continue;
+            }
+            if (!option.startsWith("-") || option.length() == 1) {
+                paths.add(option);
+                continue;
+            }
+            for (int j = 1; j < option.length(); j++) {
+                switch (option.charAt(j)) {
+                    case 'a':
+                        options.showAll = true;
+                        break;
+                    case 'r':
+                        reverseOrder = true;
+                        break;
+                    case 'R':
+                        options.recursive = true;
+                        break;
+                    case 'l':
+                        options.longFormat = true;
+                        break;
+                    case 'S':
+                    case 't':
+                    case 'U':
+                        sortKey = option.charAt(j);
+                        break;
+                    default:
+                        ctx.error("Error: Unknown option '-" + option.charAt(j) + "' for ls.");
+                        return;
+                }
+            }
+        }
+        switch (sortKey) {
+            case 'S':
+                options.order = DirectoryEntry.BY_SIZE;
+                options.sortByAttributes = true;
+                break;
+            case 't':
+                options.order = DirectoryEntry.BY_TIME;
+                options.sortByAttributes = true;
+                break;
+            case 'U':
+                // Directory order; like GNU ls, -r has nothing to reverse then.
+                options.order = null;
+                break;
+            default:
+                options.order = DirectoryEntry.BY_NAME;
+        }
+        if (reverseOrder && options.order != null) {
+            options.order = options.order.reversed();
+        }
+
+        if (paths.isEmpty()) {
+            list(ctx, ctx.currentDirectory(), null, options, false);
+            return;
+        }
+        List<DirectoryEntry> files = new ArrayList<>();
+        List<String> directories = new ArrayList<>();
+        for (String name : paths) {
+            Path path = ctx.resolve(name);
+            if (Files.isDirectory(path)) {
+                directories.add(name);
+            } else if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                files.add(DirectoryEntry.read(ctx.currentDirectory(), name, options.longFormat));
+            } else {
+                ctx.error("Error: '" + name + "' does not exist.");
+            }
+        }
+        DirectoryEntry[] entries = files.toArray(new DirectoryEntry[0]);
+        if (options.order != null) Arrays.sort(entries, options.order);
+        Widths widths = Widths.of(entries);
+        StringBuilder line = new StringBuilder();
+        for (DirectoryEntry entry : entries) {
+            ctx.stdout().println(format(line, entry, widths, options));
+        }
+        boolean headings = paths.size() > 1;
+        boolean separate = entries.length > 0;
+        for (String name : directories) {
+            // -R heads every directory, the first included.
+            list(ctx, ctx.resolve(name), headings || options.recursive ? name : null, options, separate);
+            separate = true;
+        }
+    }
+
+    /**
+     * Lists one directory, or with -R its whole tree, under a heading unless it is null;
+     * {@code separate} puts a blank line before it.
+     */
+    private static void list(CommandContext ctx, Path directory, String heading, Options options, boolean separate) {
+        if (options.recursive) {
+            Listing root = new Listing(directory, heading != null ? heading : ".", options);
+            Pools.IO.execute(root);
+            print(ctx, root, separate);
+            return;
+        }
+        if (separate) ctx.stdout().println();
+        if (heading != null) ctx.stdout().println(heading + ":");
+        try {
+            stream(ctx.stdout(), directory, options);
+        } catch (IOException | DirectoryIteratorException e) {
+            ctx.error(heading != null ? "Error: Unable to list '" + heading + "'." : "Error: Unable to list directory contents.");
+        }
+    }
+
+    /** The directory snapshots shared by every session. */
+    static DirectoryCache cache() {
+        return CACHE;
+    }
+
+    /** Lists one directory in bounded memory, printing as early as the order allows. */
+    private static void stream(OutputSink out, Path directory, Options options) throws IOException {
+        StringBuilder line = new StringBuilder();
+        if (options.order == null) {
+            int limit = options.top > 0 ? options.top : Integer.MAX_VALUE;
+            read(directory, options, limit, entry -> out.println(format(line, entry, STREAMING_WIDTHS, options)));
+        } else if (options.top > 0) {
+            Top top = new Top(options.order, options.top);
+            read(directory, options, Integer.MAX_VALUE, top::add);
+            DirectoryEntry[] entries = top.sorted();
+            Widths widths = Widths.of(entries);
+            for (DirectoryEntry entry : entries) {
+                out.println(format(line, entry, widths, options));
+            }
+        } else {
+            try (EntrySorter sorter = new EntrySorter(options.order, SORT_RUN_SIZE)) {
+                Widths widths = new Widths(1, 1, 1);
+                read(directory, options, Integer.MAX_VALUE, entry -> {
+                    widths.include(entry);
+                    sorter.add(entry);
+                });
+                sorter.drain(entry -> out.println(format(line, entry, widths, options)));
+            }
+        }
+    }
+
+    /**
+     * Feeds up to {@code limit} entries of a directory to the consumer in the order they are
+     * read, from the cache when it holds a snapshot with the attributes needed. Otherwise
+     * the directory is read from disk: when attributes are needed, names are collected in
+     * batches and each batch is stat'ed in parallel before being passed on, and a full read
+     * is stored as a new snapshot.
+     */
+    private static void read(Path directory, Options options, int limit, EntrySorter.EntryConsumer consumer)
+            throws IOException {
+        int level = options.level();
+        DirectoryCache.Watch watch = null;
+        if (options.cached && CACHE.isEnabled()) {
+            DirectoryCache.Snapshot snapshot = CACHE.get(directory, level);
+            if (snapshot != null) {
+                Feed feed = new Feed(options, limit, consumer, null);
+                for (DirectoryEntry entry : snapshot.entries) {
+                    if (!feed.offer(entry)) break;
+                }
+                return;
+            }
+            // A listing cut short by --top isn't a whole directory, so it isn't cached.
+            if (limit == Integer.MAX_VALUE) watch = CACHE.watch(directory);
+        }
+        FileTime modified = watch != null ? DirectoryCache.modified(directory) : null;
+
+        Feed feed = new Feed(options, limit, consumer, watch != null ? new ArrayList<>() : null);
+        boolean complete = false;
+        try {
+            boolean attributes = level > DirectoryCache.NAMES;
+            // A snapshot keeps hidden entries too, so it can serve ls -a later.
+            boolean hidden = options.showAll || watch != null;
+            String[] batch = new String[attributes ? STREAM_BATCH : 0];
+            int pending = 0;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path path : stream) {
+                    String name = path.getFileName().toString();
+                    if (!hidden && name.startsWith(".")) continue;
+                    if (!attributes) {
+                        if (!feed.offer(DirectoryEntry.nameOnly(name))) break;
+                        continue;
+                    }
+                    batch[pending++] = name;
+                    if (pending == batch.length) {
+                        boolean more = feed.offerAll(readAttributes(directory, batch, pending, level == DirectoryCache.FULL));
+                        pending = 0;
+                        if (!more) break;
+                    }
+                }
+            }
+            if (pending > 0) {
+                feed.offerAll(readAttributes(directory, batch, pending, level == DirectoryCache.FULL));
+            }
+            complete = true;
+        } finally {
+            if (watch != null) {
+                List<DirectoryEntry> snapshot = complete ? feed.snapshot : null;
+                CACHE.put(directory, watch, snapshot != null ? snapshot.toArray(new DirectoryEntry[0]) : null,
+                        level, modified);
+            }
+        }
+    }
+
+    /** Reads the attributes of the first {@code count} names, in parallel batches for a large directory. */
+    static DirectoryEntry[] readAttributes(Path directory, String[] names, int count, boolean full) {
+        DirectoryEntry[] entries = new DirectoryEntry[count];
+        AttributeReader reader = new AttributeReader(directory, names, entries, 0, count, full);
+        if (count <= ATTRIBUTE_BATCH) {
+            reader.compute();
+        } else if (ForkJoinTask.inForkJoinPool()) {
+            reader.invoke();
+        } else {
+            Pools.IO.invoke(reader);
+        }
+        return entries;
+    }
+
+    /** Prints directories depth first in order, each as soon as its task is done. */
+    private static void print(CommandContext ctx, Listing root, boolean separate) {
+        OutputSink out = ctx.stdout();
+        Deque<Listing> pending = new ArrayDeque<>();
+        pending.push(root);
+        boolean first = !separate;
+        while (!pending.isEmpty() && !out.checkError()) {
+            Listing listing = pending.pop();
+            String[] lines = listing.join();
+            if (lines == null) {
+                ctx.error(listing == root && listing.label.equals(".")
+                        ? "Error: Unable to list directory contents."
+                        : "Error: Unable to list '" + listing.label + "'.");
+                continue;
+            }
+            if (!first) out.println();
+            out.println(listing.label + ":");
+            first = false;
+            for (String line : lines) {
+                out.println(line);
+            }
+            List<Listing> children = listing.children;
+            for (int i = children.size() - 1; i >= 0; i--) {
+                pending.push(children.get(i));
+            }
+            // Printed: drop the lines and children so the subtree can be collected as the walk goes on.
+            listing.release();
+        }
+    }
+
+    private static String format(StringBuilder line, DirectoryEntry entry, Widths widths, Options options) {
+        if (!options.longFormat) {
+            return entry.name;
+        }
+        line.setLength(0);
+        if (entry.type == '?') {
+            // The entry vanished or can't be stat'ed between reading the directory and now.
+            line.append("??????????");
+        } else {
+            line.append(entry.type).append(entry.permissions != null ? entry.permissions : "?????????");
+        }
+        line.append(' ');
+        pad(line, entry.owner != null ? entry.owner : "?", widths.owner).append(' ');
+        pad(line, entry.group != null ? entry.group : "?", widths.group).append(' ');
+        padLeft(line, entry.size >= 0 ? Long.toString(entry.size) : "?", widths.size).append(' ');
+        if (entry.modified >= 0) {
+            line.append(TIME_FORMAT.format(Instant.ofEpochMilli(entry.modified)));
+        } else {
+            pad(line, "?", 16);
+        }
+        line.append(' ').append(entry.name);
+        if (entry.linkTarget != null) {
+            line.append(" -> ").append(entry.linkTarget);
+        }
+        return line.toString();
+    }
+
+    private static StringBuilder pad(StringBuilder line, String value, int width) {
+        line.append(value);
+        for (int i = value.length(); i < width; i++) line.append(' ');
+        return line;
+    }
+
+    private static StringBuilder padLeft(StringBuilder line, String value, int width) {
+        for (int i = value.length(); i < width; i++) line.append(' ');
+        return line.append(value);
+    }
+
+    /**
+     * Passes entries on to a consumer, skipping hidden ones unless they are wanted and
+     * stopping after the limit, while collecting everything into a snapshot for the cache.
+     */
+    private static final class Feed {
+        private final Options options;
+        private final int limit;
+        private final EntrySorter.EntryConsumer consumer;
+        private int delivered;
+        // Null when no snapshot is being taken, or the directory turned out too large for one.
+        List<DirectoryEntry> snapshot;
+
+        Feed(Options options, int limit, EntrySorter.EntryConsumer consumer, List<DirectoryEntry> snapshot) {
+            this.options = options;
+            this.limit = limit;
+            this.consumer = consumer;
+            this.snapshot = snapshot;
+        }
+
+        /** Returns false once no more entries are wanted. */
+        boolean offer(DirectoryEntry entry) throws IOException {
+            if (snapshot != null) {
+                if (snapshot.size() < DirectoryCache.MAX_SNAPSHOT_ENTRIES) {
+                    snapshot.add(entry);
+                } else {
+                    snapshot = null;
+                }
+            }
+            if (delivered < limit && (options.showAll || !entry.name.startsWith("."))) {
+                delivered++;
+                consumer.accept(entry);
+            }
+            return delivered < limit || snapshot != null;
+        }
+
+        boolean offerAll(DirectoryEntry[] entries) throws IOException {
+            for (DirectoryEntry entry : entries) {
+                if (!offer(entry)) return false;
+            }
+            return true;
+        }
+    }
+
+    private static final class Options {
+        boolean showAll;
+        boolean recursive;
+        boolean longFormat;
+        // Null lists entries in directory order.
+        Comparator<DirectoryEntry> order;
+        boolean sortByAttributes;
+        // Zero lists every entry.
+        int top;
+        boolean cached = true;
+
+        int level() {
+            if (longFormat) return DirectoryCache.FULL;
+            return recursive || sortByAttributes ? DirectoryCache.BASIC : DirectoryCache.NAMES;
+        }
+    }
+
+    /** Column widths of the long format. */
+    private static final class Widths {
+        int owner;
+        int group;
+        int size;
+
+        Widths(int owner, int group, int size) {
+            this.owner = owner;
+            this.group = group;
+            this.size = size;
+        }
+
+        static Widths of(DirectoryEntry[] entries) {
+            Widths widths = new Widths(1, 1, 1);
+            for (DirectoryEntry entry : entries) {
+                widths.include(entry);
+            }
+            return widths;
+        }
+
+        void include(DirectoryEntry entry) {
+            if (entry.owner != null) owner = Math.max(owner, entry.owner.length());
+            if (entry.group != null) group = Math.max(group, entry.group.length());
+            if (entry.size >= 0) size = Math.max(size, Long.toString(entry.size).length());
+        }
+    }
+
+    /** The first N entries in a given order, found with a heap of N instead of a full sort. */
+    private static final class Top {
+        private final Comparator<DirectoryEntry> order;
+        private final int limit;
+        // The worst of the entries kept so far sits at the head.
+        private final PriorityQueue<DirectoryEntry> heap;
+
+        Top(Comparator<DirectoryEntry> order, int limit) {
+            this.order = order;
+            this.limit = limit;
+            this.heap = new PriorityQueue<>(Math.min(limit, 1024) + 1, order.reversed());
+        }
+
+        void add(DirectoryEntry entry) {
+            if (heap.size() < limit) {
+                heap.add(entry);
+            } else if (order.compare(entry, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+
+        DirectoryEntry[] sorted() {
+            DirectoryEntry[] entries = heap.toArray(new DirectoryEntry[0]);
+            Arrays.sort(entries, order);
+            return entries;
+        }
+    }
+
+    /**
+     * Reads, orders and formats one directory, then forks a task for each subdirectory.
+     * Yields the formatted lines, or null if the directory can't be read.
+     */
+    private static final class Listing extends RecursiveTask<String[]> {
+        final Path directory;
+        final String label;
+        final Options options;
+        List<Listing> children = Collections.emptyList();
+
+        Listing(Path directory, String label, Options options) {
+            this.directory = directory;
+            this.label = label;
+            this.options = options;
+        }
+
+        @Override
+        protected String[] compute() {
+            List<DirectoryEntry> read = new ArrayList<>();
+            try {
+                Ls.read(directory, options, Integer.MAX_VALUE, read::add);
+            } catch (IOException | DirectoryIteratorException e) {
+                return null;
+            }
+
+            DirectoryEntry[] entries = read.toArray(new DirectoryEntry[0]);
+            if (options.order != null) {
+                if (options.top > 0) {
+                    Top top = new Top(options.order, options.top);
+                    for (DirectoryEntry entry : entries) {
+                        top.add(entry);
+                    }
+                    entries = top.sorted();
+                } else {
+                    Arrays.sort(entries, options.order);
+                }
+            } else if (options.top > 0 && entries.length > options.top) {
+                entries = Arrays.copyOf(entries, options.top);
+            }
+
+            children = new ArrayList<>();
+            for (DirectoryEntry entry : entries) {
+                // Symbolic links are never followed, so a link cycle can't make the walk endless.
+                if (entry.isDirectory()) {
+                    Listing child = new Listing(directory.resolve(entry.name), label + "/" + entry.name, options);
+                    child.fork();
+                    children.add(child);
+                }
+            }
+
+            Widths widths = Widths.of(entries);
+            StringBuilder line = new StringBuilder();
+            String[] lines = new String[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                lines[i] = format(line, entries[i], widths, options);
+            }
+            return lines;
+        }
+
+        /** Drops the printed lines and the children, once they are handed to the printer. */
+        void release() {
+            children = Collections.emptyList();
+            setRawResult(null);
+        }
+    }
+
+    /**
+     * Reads the attributes of a range of entries, splitting large ranges so a wide
+     * directory is stat'ed by several workers at once.
+     */
+    private static final class AttributeReader extends RecursiveAction {
+        private final Path directory;
+        private final String[] names;
+        private final DirectoryEntry[] entries;
+        private final int from;
+        private final int to;
+        private final boolean full;
+
+        AttributeReader(Path directory, String[] names, DirectoryEntry[] entries, int from, int to, boolean full) {
+            this.directory = directory;
+            this.names = names;
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.full = full;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > ATTRIBUTE_BATCH) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new AttributeReader(directory, names, entries, from, middle, full),
+                        new AttributeReader(directory, names, entries, middle, to, full));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                entries[i] = DirectoryEntry.read(directory, names[i], full);
+            }
+        }
+    }
+}
@@ -0,0 +1,379 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Where the time goes inside the interpreter: every command run, every pipeline and
+ * every redirection is timed into a latency histogram, together with the bytes it read
+ * and wrote and the bytes the thread running it allocated. 'stats' prints percentiles
+ * per command; each run is also a JFR event, oscli.Command, when a recording is on.
+ * Allocation is counted on the dispatching thread only. What a command hands to a pool
+ * (grep, wc, cp, find, du, ls -R, the checksums) is left out of its figure, and a
+ * pipeline's figure covers the thread that starts its stages and waits for them, not the
+ * stages' own threads.
+ * <p>
+ * Recording takes no locks: histogram buckets are atomic counters, log-linear like
+ * HdrHistogram's, so any latency from a nanosecond to hours lands in a bucket within
+ * about 3% of it. With the oscli.stats.file property set, a snapshot of every command's
+ * figures is appended to that file as one line of JSON every oscli.stats.interval
+ * seconds (60 by default), for dashboards to pick up.
+ */
+final class Metrics {
+    // Names under which whole pipelines and redirections are recorded, next to the commands.
+    static final String PIPELINE = "(pipeline)";
+    static final String REDIRECT = "(redirect)";
+    // Past this many distinct names, every new one is recorded under OTHER, so typed
+    // program paths can't grow the table for the life of the process.
+    static final int MAX_RECORDERS = 1000;
+    static final String OTHER = "(other)";
+
+    private static final Map<String, Recorder> RECORDERS = new ConcurrentHashMap<>();
+    private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    static {
+        String file = System.getProperty("oscli.stats.file");
+        if (file != null) {
+            long interval = Long.getLong("oscli.stats.interval", 60);
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "stats-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            Path path = Paths.get(file);
+            dumper.scheduleAtFixedRate(() -> {
+                try {
+                    dump(path);
+                } catch (IOException e) {
+                    // The next interval tries again; a dashboard gap beats a failed command.
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /** Starts timing one run of {@code name}. */
+    static Span begin(String name) {
+        return new Span(name);
+    }
+
+    /** One timed run: created when it starts, recorded when {@link #end} is called. */
+    static final class Span {
+        private final String name;
+        private final long allocatedBefore;
+        private final long started;
+        private final CommandEvent event = new CommandEvent();
+        private OutputSink out;
+        private long outBefore;
+        private CountingInputStream in;
+
+        private Span(String name) {
+            this.name = name;
+            this.allocatedBefore = allocated();
+            event.begin();
+            this.started = System.nanoTime();
+        }
+
+        /** The context the run reads and writes through, with its input counted, if it has any. */
+        CommandContext measure(CommandContext ctx) {
+            out = ctx.stdout();
+            outBefore = out.written();
+            if (ctx.stdin() == null) return ctx;
+            in = new CountingInputStream(ctx.stdin());
+            return ctx.withStdin(in);
+        }
+
+        void end(boolean failed) {
+            long nanos = System.nanoTime() - started;
+            long bytesIn = in != null ? in.count : 0;
+            long bytesOut = out != null ? out.written() - outBefore : 0;
+            long allocated = allocatedBefore >= 0 ? allocated() - allocatedBefore : 0;
+            Recorder recorder = RECORDERS.get(name);
+            if (recorder == null) recorder = recorder(name);
+            recorder.record(nanos, bytesIn, bytesOut, allocated, failed);
+            event.end();
+            if (event.shouldCommit()) {
+                event.command = name;
+                event.bytesIn = bytesIn;
+                event.bytesOut = bytesOut;
+                event.allocated = allocated;
+                event.failed = failed;
+                event.commit();
+            }
+        }
+    }
+
+    /** The recorder for a name not seen before, or OTHER's once there are MAX_RECORDERS. */
+    private static Recorder recorder(String name) {
+        if (RECORDERS.size() >= MAX_RECORDERS) name = OTHER;
+        return RECORDERS.computeIfAbsent(name, Recorder::new);
+    }
+
+    /** The 'stats' builtin: prints each command's figures; 'stats reset' starts them over. */
+    static void stats(CommandContext ctx, String[] args) {
+        if (args.length == 1 && args[0].equals("reset")) {
+            RECORDERS.clear();
+            ctx.stdout().println("Statistics reset.");
+            return;
+        }
+        if (args.length > 0) {
+            ctx.error("Error: Usage: stats [reset]");
+            return;
+        }
+        List<Recorder> recorders = snapshot();
+        if (recorders.isEmpty()) {
+            ctx.stdout().println("No commands recorded yet.");
+            return;
+        }
+        OutputSink out = ctx.stdout();
+        out.println(String.format(Locale.ROOT, "%-12s %7s %6s %9s %9s %9s %9s %10s %10s %10s",
+                "COMMAND", "RUNS", "ERRORS", "P50", "P90", "P99", "MAX", "IN", "OUT", "ALLOCATED"));
+        for (Recorder recorder : recorders) {
+            long[] counts = recorder.latency.counts();
+            out.println(String.format(Locale.ROOT, "%-12s %7d %6d %9s %9s %9s %9s %10s %10s %10s",
+                    recorder.name, recorder.runs.sum(), recorder.errors.sum(),
+                    formatNanos(recorder.percentile(counts, 50)), formatNanos(recorder.percentile(counts, 90)),
+                    formatNanos(recorder.percentile(counts, 99)), formatNanos(recorder.max.get()),
+                    Copier.formatBytes(recorder.bytesIn.sum()), Copier.formatBytes(recorder.bytesOut.sum()),
+                    THREADS != null ? Copier.formatBytes(recorder.allocated.sum()) : "-"));
+        }
+    }
+
+    /** Appends every command's figures to a file as one line of JSON. */
+    static void dump(Path file) throws IOException {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"time\":\"").append(Instant.now()).append("\",\"commands\":[");
+        boolean first = true;
+        for (Recorder recorder : snapshot()) {
+            long[] counts = recorder.latency.counts();
+            if (!first) json.append(',');
+            first = false;
+            json.append("{\"name\":");
+            appendString(json, recorder.name);
+            json.append(",\"runs\":").append(recorder.runs.sum())
+                    .append(",\"errors\":").append(recorder.errors.sum());
+            for (double percentile : PERCENTILES) {
+                json.append(",\"p").append((int) percentile).append("_ns\":").append(recorder.percentile(counts, percentile));
+            }
+            json.append(",\"max_ns\":").append(recorder.max.get())
+                    .append(",\"bytes_in\":").append(recorder.bytesIn.sum())
+                    .append(",\"bytes_out\":").append(recorder.bytesOut.sum())
+                    .append(",\"allocated\":").append(recorder.allocated.sum())
+                    .append('}');
+        }
+        json.append("]}\n");
+        Files.writeString(file, json, StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+    }
+
+    /** Appends a string as a JSON string literal, quoted and escaped. */
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private static List<Recorder> snapshot() {
+        List<Recorder> recorders = new ArrayList<>(RECORDERS.values());
+        recorders.sort(Comparator.comparing(recorder -> recorder.name));
+        return recorders;
+    }
+
+    /** A duration as "850 us", "12.3 ms" or "1.25 s". */
+    static String formatNanos(long nanos) {
+        if (nanos < 1_000_000) return (nanos / 1000) + " us";
+        if (nanos < 1_000_000_000) return String.format(Locale.ROOT, "%.1f ms", nanos / 1e6);
+        return String.format(Locale.ROOT, "%.2f s", nanos / 1e9);
+    }
+
+    private static long allocated() {
+        return THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : -1;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+            if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled()) {
+                return counter;
+            }
+        }
+        return null;
+    }
+
+    /** The figures of one command, summed over all its runs. */
+    private static final class Recorder {
+        final String name;
+        final Histogram latency = new Histogram();
+        final LongAdder runs = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder allocated = new LongAdder();
+        final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Recorder(String name) {
+            this.name = name;
+        }
+
+        void record(long nanos, long in, long out, long allocatedBytes, boolean failed) {
+            latency.record(nanos);
+            runs.increment();
+            if (failed) errors.increment();
+            if (in > 0) bytesIn.add(in);
+            if (out > 0) bytesOut.add(out);
+            if (allocatedBytes > 0) allocated.add(allocatedBytes);
+            max.accumulate(nanos);
+        }
+
+        /** A percentile of the latencies, never above the largest one seen, which a bucket's top can be. */
+        long percentile(long[] counts, double percentile) {
+            return Math.min(Histogram.percentile(counts, percentile), max.get());
+        }
+    }
+
+    /**
+     * Counts of values in log-linear buckets: each power of two is split into 32 buckets,
+     * so a bucket is never wider than 1/32 of the values in it. Values below 32 get a
+     * bucket each.
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        void record(long value) {
+            counts.incrementAndGet(index(Math.max(0, value)));
+        }
+
+        long[] counts() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+            }
+            return copy;
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int magnitude = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+            int shift = magnitude - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        /** The largest value that falls into a bucket. */
+        static long highestValue(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int shift = index / SUB_BUCKETS - 1;
+            long top = SUB_BUCKETS + index % SUB_BUCKETS;
+            return ((top + 1) << shift) - 1;
+        }
+
+        /** The value below which {@code percentile} percent of the counted values fall, or 0 if none were. */
+        static long percentile(long[] counts, double percentile) {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return highestValue(i);
+            }
+            return highestValue(counts.length - 1);
+        }
+    }
+
+    /** Counts the bytes read through it. */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) count += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            if (skipped > 0) count += skipped;
+            return skipped;
+        }
+    }
+
+    @Name("oscli.Command")
+    @Label("Command")
+    @Category("OS-CLI")
+    @Description("One run of a builtin, a pipeline or a redirection")
+    static final class CommandEvent extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Bytes In")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Bytes Out")
+        @DataAmount
+        long bytesOut;
+
+        @Label("Allocated")
+        @Description("Bytes allocated by the thread that ran it")
+        @DataAmount
+        long allocated;
+
+        @Label("Failed")
+        boolean failed;
+    }
+}
@@ -0,0 +1,281 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Where a command writes its output. Text is encoded straight into a large buffer that
+ * is only written out when it fills up or the command ends, instead of one synchronized,
+ * flushed write per line as with System.out.println.
+ * <p>
+ * Sinks over a channel (files and pipes) use a direct buffer, so each drain is a single
+ * channel write with no extra copy. Like PrintStream, a sink never throws: a failed write
+ * (for example a closed pipe) is remembered and reported by {@link #checkError()}.
+ */
+final class OutputSink extends OutputStream {
+    static final int BUFFER_SIZE = 64 * 1024;
+    // Redirected output goes to disk in large writes.
+    static final int FILE_BUFFER_SIZE = 1024 * 1024;
+    private static final int WRITE_THROUGH_BUFFER_SIZE = 1024;
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    // One spare buffer of each kind per thread, so back-to-back commands reuse them.
+    private static final ThreadLocal<ByteBuffer> SPARE_DIRECT = new ThreadLocal<>();
+    private static final ThreadLocal<ByteBuffer> SPARE_HEAP = new ThreadLocal<>();
+    private static final ThreadLocal<ByteBuffer> SPARE_FILE = new ThreadLocal<>();
+
+    private final OutputStream stream;
+    private final WritableByteChannel channel;
+    private final boolean autoFlush;
+    // Where the buffer comes from and goes back to; null for a write-through sink.
+    private final ThreadLocal<ByteBuffer> pool;
+    private final int bufferSize;
+    private ByteBuffer buffer;
+    private CharsetEncoder encoder;
+    private boolean error;
+    // Bytes delivered to the target so far, for the interpreter's metrics.
+    private long written;
+
+    private OutputSink(OutputStream stream, WritableByteChannel channel, boolean autoFlush,
+                       ThreadLocal<ByteBuffer> pool, int bufferSize) {
+        this.stream = stream;
+        this.channel = channel;
+        this.autoFlush = autoFlush;
+        this.pool = pool;
+        this.bufferSize = bufferSize;
+        // A write-through sink only ever holds a single print, so it skips the large buffer.
+        this.buffer = pool != null ? acquire(pool, bufferSize, channel != null) : ByteBuffer.allocate(bufferSize);
+    }
+
+    /** A sink writing to a file or pipe channel through a direct buffer. */
+    static OutputSink of(WritableByteChannel channel) {
+        return new OutputSink(null, channel, false, SPARE_DIRECT, BUFFER_SIZE);
+    }
+
+    /**
+     * A sink writing to a file through a 1 MiB direct buffer, for redirected output that
+     * may run to gigabytes. Copies that go through {@link #channel()} bypass the buffer.
+     */
+    static OutputSink ofFile(FileChannel channel) {
+        return new OutputSink(null, channel, false, SPARE_FILE, FILE_BUFFER_SIZE);
+    }
+
+    /** A sink writing to a stream through a heap buffer. */
+    static OutputSink of(OutputStream stream) {
+        return new OutputSink(stream, null, false, SPARE_HEAP, BUFFER_SIZE);
+    }
+
+    /**
+     * A sink over a PrintStream that hands every print straight through, for callers that
+     * invoke a command directly and expect the output to be there when it returns.
+     */
+    static OutputSink writeThrough(PrintStream stream) {
+        return new OutputSink(stream, null, true, null, WRITE_THROUGH_BUFFER_SIZE);
+    }
+
+    /**
+     * A new sink over the same target with a buffer of its own, for another thread to
+     * write to. Every target used here (files, pipes, PrintStreams) accepts concurrent
+     * writes, and each drain is a single write, so output interleaves at buffer boundaries.
+     */
+    OutputSink share() {
+        return new OutputSink(stream, channel, autoFlush, pool, bufferSize);
+    }
+
+    public void print(String s) {
+        append(s);
+        if (autoFlush) flush();
+    }
+
+    public void print(Object o) {
+        print(String.valueOf(o));
+    }
+
+    public void println(String s) {
+        append(s);
+        append(LINE_SEPARATOR);
+        if (autoFlush) flush();
+    }
+
+    public void println(Object o) {
+        println(String.valueOf(o));
+    }
+
+    public void println() {
+        print(LINE_SEPARATOR);
+    }
+
+    private void append(String s) {
+        int length = s.length();
+        int i = 0;
+        // ASCII fast path: one byte per char, no encoder involved.
+        while (i < length) {
+            char c = s.charAt(i);
+            if (c >= 0x80) break;
+            if (!buffer.hasRemaining()) drain();
+            buffer.put((byte) c);
+            i++;
+        }
+        if (i < length) {
+            encode(s, i);
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        if (!buffer.hasRemaining()) drain();
+        buffer.put((byte) b);
+        if (autoFlush) flush();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (len >= buffer.capacity()) {
+            // Too big to be worth staging: drain what is pending and write it through.
+            drain();
+            writeFully(ByteBuffer.wrap(b, off, len));
+        } else {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) drain();
+                int chunk = Math.min(len, buffer.remaining());
+                buffer.put(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+        if (autoFlush) flush();
+    }
+
+    /**
+     * Writes bytes from a buffer, for example a mapped file, without disturbing its
+     * position, so several threads may copy out of the same buffer.
+     */
+    void write(ByteBuffer source, int offset, int length) {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) drain();
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.put(buffer.position(), source, offset, chunk);
+            buffer.position(buffer.position() + chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+        if (autoFlush) flush();
+    }
+
+    /**
+     * Returns the channel behind this sink, with everything written so far already
+     * delivered to it, or null when the sink writes to a stream.
+     */
+    WritableByteChannel channel() {
+        if (channel != null) drain();
+        return channel;
+    }
+
+    /** Bytes written to this sink so far, including those still in its buffer. */
+    long written() {
+        return written + (buffer != null ? buffer.position() : 0);
+    }
+
+    /** Counts bytes a caller copied straight into {@link #channel()}. */
+    void transferred(long bytes) {
+        written += bytes;
+    }
+
+    /** Records a failed write a caller made straight into {@link #channel()}. */
+    void writeFailed() {
+        error = true;
+    }
+
+    /** True once a write to the target has failed, e.g. because the reader went away. */
+    boolean checkError() {
+        return error;
+    }
+
+    @Override
+    public void flush() {
+        drain();
+        if (stream != null && !error) {
+            try {
+                stream.flush();
+            } catch (IOException e) {
+                error = true;
+            }
+        }
+    }
+
+    /** Flushes and gives the buffer back for reuse. The target itself stays open. */
+    @Override
+    public void close() {
+        if (buffer == null) return;
+        flush();
+        if (pool != null) {
+            buffer.clear();
+            pool.set(buffer);
+        }
+        buffer = null;
+    }
+
+    private void encode(String s, int from) {
+        if (encoder == null) {
+            encoder = Charset.defaultCharset().newEncoder();
+        }
+        CharBuffer chars = CharBuffer.wrap(s, from, s.length());
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                // Unmappable input: substitute like PrintStream does and carry on.
+                chars.position(chars.position() + result.length());
+                if (!buffer.hasRemaining()) drain();
+                buffer.put((byte) '?');
+            }
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            drain();
+        }
+    }
+
+    private void drain() {
+        if (buffer.position() == 0) return;
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer source) {
+        if (error) return;
+        int length = source.remaining();
+        try {
+            if (channel != null) {
+                while (source.hasRemaining()) {
+                    channel.write(source);
+                }
+            } else {
+                stream.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+            }
+            written += length;
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+
+    private static ByteBuffer acquire(ThreadLocal<ByteBuffer> pool, int size, boolean direct) {
+        ByteBuffer buffer = pool.get();
+        if (buffer != null) {
+            pool.remove();
+            return buffer;
+        }
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+}
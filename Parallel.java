@@ -0,0 +1,108 @@
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The 'parallel' builtin: runs each argument as a command line of its own, several at
+ * once, e.g. {@code parallel -j 2 'cat a > a.bak' 'cp -r b c' 'grep -c x big.log'}.
+ * <p>
+ * At most N commands (-j, the number of cores by default) run at a time, on the job
+ * pool. Each writes its output and errors into buffers of its own, and the buffers are
+ * printed in the order the commands were given, each as soon as it and every command
+ * before it have ended, so the output reads as if they had run one after another. Each
+ * command runs in a session of its own, starting in the current directory, so a 'cd' in
+ * one doesn't move the others. The group fails if any command fails.
+ */
+final class Parallel {
+    private Parallel() {
+    }
+
+    static void run(CommandContext ctx, String[] args) {
+        int limit = Runtime.getRuntime().availableProcessors();
+        int first = 0;
+        if (args.length > 0 && args[0].startsWith("-j")) {
+            // "-j 4" or "-j4".
+            String value = args[0].length() > 2 ? args[0].substring(2) : args.length > 1 ? args[1] : "";
+            first = args[0].length() > 2 ? 1 : 2;
+            try {
+                limit = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                limit = 0;
+            }
+            if (limit <= 0) {
+                ctx.error("Error: -j requires a positive number.");
+                return;
+            }
+        }
+        if (first >= args.length) {
+            ctx.error("Error: 'parallel' requires at least one command.");
+            return;
+        }
+
+        String[] lines = Arrays.copyOfRange(args, first, args.length);
+        List<CompletableFuture<Result>> results = new ArrayList<>(lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            results.add(new CompletableFuture<>());
+        }
+        // A fixed set of workers takes the commands in order, so no more than 'limit' run at once.
+        AtomicInteger next = new AtomicInteger();
+        for (int w = 0; w < Math.min(limit, lines.length); w++) {
+            Jobs.RUNNERS.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < lines.length) {
+                    try {
+                        results.get(i).complete(runOne(ctx, lines[i]));
+                    } catch (Throwable e) {
+                        results.get(i).completeExceptionally(e);
+                    }
+                }
+            });
+        }
+
+        for (int i = 0; i < lines.length; i++) {
+            Result result;
+            try {
+                result = results.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                ctx.error("Error: Interrupted while running commands in parallel.");
+                return;
+            } catch (ExecutionException e) {
+                ctx.error("Error executing command: " + e.getCause().getMessage());
+                continue;
+            }
+            result.output.writeTo(ctx.stdout());
+            result.errors.writeTo(ctx.stderr());
+            if (result.status != 0) ctx.fail();
+            ctx.stdout().flush();
+        }
+    }
+
+    private static Result runOne(CommandContext ctx, String line) {
+        Result result = new Result();
+        try (OutputSink out = OutputSink.of(result.output);
+             OutputSink err = OutputSink.of(result.errors)) {
+            Session session = new Session(ctx.currentDirectory());
+            result.status = CommandLineInterpreter.run(new CommandContext(session, null, out, err), line);
+        }
+        return result;
+    }
+
+    /** What one command printed, and its exit status. */
+    private static final class Result {
+        final Buffer output = new Buffer();
+        final Buffer errors = new Buffer();
+        int status;
+    }
+
+    /** A byte buffer that hands its contents to a sink without copying them first. */
+    private static final class Buffer extends ByteArrayOutputStream {
+        void writeTo(OutputSink sink) {
+            sink.write(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The ForkJoin pools builtins run their parallel work on. Every command shares them, so
+ * commands running at once (pipeline stages, jobs, other sessions) queue more tasks
+ * instead of starting more threads.
+ */
+final class Pools {
+    /**
+     * For work that mostly waits on the file system: walking trees, listing, copying,
+     * moving and deleting. Waiting workers leave cores idle, so there are more than cores.
+     */
+    static final ForkJoinPool IO = new ForkJoinPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+    /** For work bound by the processor: searching, counting and hashing. One worker per core. */
+    static final ForkJoinPool CPU = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private Pools() {
+    }
+}
@@ -0,0 +1,59 @@
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * The state one user of the interpreter carries from command to command: the working
+ * directory, the background jobs and whether the session is still accepting commands.
+ * Each console, script or client connection gets its own, so sessions never see each
+ * other's 'cd' or jobs. A background job runs in a session of its own too, which shares
+ * only the jobs table of the session that started it.
+ */
+final class Session {
+    private volatile Path currentDirectory;
+    private volatile boolean running = true;
+    // What the user types at the prompt, or null where nobody does.
+    private volatile InputStream console;
+    private final Jobs jobs;
+
+    Session(Path currentDirectory) {
+        this(currentDirectory, new Jobs());
+    }
+
+    Session(Path currentDirectory, Jobs jobs) {
+        this.currentDirectory = currentDirectory;
+        this.jobs = jobs;
+    }
+
+    Path getCurrentDirectory() {
+        return currentDirectory;
+    }
+
+    void setCurrentDirectory(Path currentDirectory) {
+        this.currentDirectory = currentDirectory;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * The interactive console's input, which a foreground command that runs until it is
+     * stopped watches for a keypress. Null for scripts, jobs and client sessions.
+     */
+    InputStream console() {
+        return console;
+    }
+
+    void setConsole(InputStream console) {
+        this.console = console;
+    }
+
+    /** The jobs started in the background from this session. */
+    Jobs jobs() {
+        return jobs;
+    }
+
+    void stop() {
+        running = false;
+    }
+}
@@ -0,0 +1,20 @@
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A builtin that takes its arguments as they are produced. Wildcards in its arguments are
+ * expanded while it runs rather than up front, so a pattern matching millions of files is
+ * never held as one array.
+ */
+@FunctionalInterface
+interface StreamingCommand extends Command {
+    /**
+     * @param args the words after the command name, unquoted, with wildcards expanded lazily
+     */
+    void execute(CommandContext ctx, Iterator<String> args) throws Exception;
+
+    @Override
+    default void execute(CommandContext ctx, String[] args) throws Exception {
+        execute(ctx, Arrays.asList(args).iterator());
+    }
+}
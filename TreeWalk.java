@@ -0,0 +1,49 @@
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * One directory of a parallel tree walk, for 'find' and 'du'. Where
+ * {@link Files#walkFileTree} visits a tree in one thread, here every directory is a task
+ * on a ForkJoin pool that reads its entries and forks a task for each subdirectory, so
+ * a wide tree is read by every worker at once. Symbolic links are never followed, so a
+ * link cycle can't make a walk endless.
+ */
+abstract class TreeWalk<R> extends RecursiveTask<R> {
+    final Path directory;
+    // How the directory is shown: the path it was given as, then joined with each name below it.
+    final String label;
+
+    TreeWalk(Path directory, String label) {
+        this.directory = directory;
+        this.label = label;
+    }
+
+    /**
+     * The entries of this directory, hidden ones included, in name order. Their basic
+     * attributes are read in parallel batches when the directory is large.
+     */
+    DirectoryEntry[] entries() throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                names.add(path.getFileName().toString());
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        DirectoryEntry[] entries = Ls.readAttributes(directory, names.toArray(new String[0]), names.size(), false);
+        Arrays.sort(entries, DirectoryEntry.BY_NAME);
+        return entries;
+    }
+
+    String label(String name) {
+        return label.endsWith("/") ? label + name : label + "/" + name;
+    }
+}
@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The 'wc' builtin: counts the lines, words and bytes of files or of its input.
+ * <p>
+ * Files are memory-mapped and counted in chunks on a ForkJoin pool; each chunk records
+ * whether it starts and ends inside a word, so a word split across two chunks is counted
+ * once when their counts are added up. Byte counts alone come from the file size without
+ * reading the file. Options: -l, -w and -c pick the counts to print, all three by default.
+ */
+final class Wc {
+    // Bytes of a file counted by one task.
+    private static final long CHUNK_SIZE = 16L * 1024 * 1024;
+    // Smaller files are read into the heap; mapping them costs more than it saves.
+    private static final int MAP_THRESHOLD = 64 * 1024;
+    private static final int STDIN_BUFFER_SIZE = 64 * 1024;
+
+    private Wc() {
+    }
+
+    static void run(CommandContext ctx, String[] args) {
+        boolean lines = false;
+        boolean words = false;
+        boolean bytes = false;
+        List<String> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("-") && arg.length() > 1) {
+                for (int i = 1; i < arg.length(); i++) {
+                    switch (arg.charAt(i)) {
+                        case 'l':
+                            lines = true;
+                            break;
+                        case 'w':
+                            words = true;
+                            break;
+                        case 'c':
+                            bytes = true;
+                            break;
+                        default:
+                            ctx.error("Error: Unknown option '-" + arg.charAt(i) + "' for wc.");
+                            return;
+                    }
+                }
+            } else {
+                files.add(arg);
+            }
+        }
+        if (!lines && !words && !bytes) {
+            lines = words = bytes = true;
+        }
+        // Counting words needs every byte looked at; lines only need the newlines found.
+        boolean countWords = words;
+        boolean sizeOnly = bytes && !lines && !words;
+
+        List<String> labels = new ArrayList<>();
+        List<Counts> results = new ArrayList<>();
+        if (files.isEmpty()) {
+            if (ctx.stdin() == null) {
+                ctx.error("Error: 'wc' requires a file name or piped input.");
+                return;
+            }
+            try {
+                results.add(countStream(ctx.stdin(), countWords));
+                labels.add(null);
+            } catch (IOException e) {
+                ctx.error("Error: Could not read input.");
+                return;
+            }
+        } else {
+            // Every file is started before the first is waited for, so small files are
+            // counted alongside the chunks of large ones.
+            List<ForkJoinTask<Counts>> tasks = new ArrayList<>();
+            for (String name : files) {
+                Path path = ctx.resolve(name);
+                tasks.add(Files.isDirectory(path) ? null : Pools.CPU.submit(new FileCount(path, countWords, sizeOnly)));
+            }
+            Counts total = new Counts();
+            for (int i = 0; i < files.size(); i++) {
+                String name = files.get(i);
+                if (tasks.get(i) == null) {
+                    ctx.error("Error: '" + name + "' is a directory.");
+                    continue;
+                }
+                Counts counts;
+                try {
+                    counts = tasks.get(i).join();
+                } catch (RuntimeException e) {
+                    // Joining may wrap the task's exception again, so look down the chain.
+                    Throwable cause = e;
+                    while (cause.getCause() != null && !(cause instanceof IOException)) cause = cause.getCause();
+                    ctx.error(cause instanceof NoSuchFileException
+                            ? "Error: File '" + name + "' not found."
+                            : "Error: Could not read '" + name + "'.");
+                    continue;
+                }
+                results.add(counts);
+                labels.add(name);
+                total.lines += counts.lines;
+                total.words += counts.words;
+                total.bytes += counts.bytes;
+            }
+            if (files.size() > 1) {
+                results.add(total);
+                labels.add("total");
+            }
+        }
+
+        // Columns are right-aligned to the widest number printed.
+        long widest = 0;
+        for (Counts counts : results) {
+            if (lines) widest = Math.max(widest, counts.lines);
+            if (words) widest = Math.max(widest, counts.words);
+            if (bytes) widest = Math.max(widest, counts.bytes);
+        }
+        int width = Long.toString(widest).length();
+        OutputSink out = ctx.stdout();
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < results.size(); i++) {
+            Counts counts = results.get(i);
+            line.setLength(0);
+            if (lines) column(line, counts.lines, width);
+            if (words) column(line, counts.words, width);
+            if (bytes) column(line, counts.bytes, width);
+            if (labels.get(i) != null) line.append(' ').append(labels.get(i));
+            out.println(line.toString());
+        }
+    }
+
+    private static void column(StringBuilder line, long value, int width) {
+        if (line.length() > 0) line.append(' ');
+        String digits = Long.toString(value);
+        for (int i = digits.length(); i < width; i++) line.append(' ');
+        line.append(digits);
+    }
+
+    /** The counts of a range of bytes, with what is needed to join it to its neighbours. */
+    static final class Counts {
+        long lines;
+        long words;
+        long bytes;
+        // Whether the range starts or ends inside a word; an empty range does neither.
+        boolean startsInWord;
+        boolean endsInWord;
+
+        /** Adds the counts of the range that follows this one. */
+        Counts then(Counts next) {
+            if (next.bytes == 0) return this;
+            if (bytes == 0) return next;
+            Counts joined = new Counts();
+            joined.lines = lines + next.lines;
+            // A word running across the boundary was counted by both halves.
+            joined.words = words + next.words - (endsInWord && next.startsInWord ? 1 : 0);
+            joined.bytes = bytes + next.bytes;
+            joined.startsInWord = startsInWord;
+            joined.endsInWord = next.endsInWord;
+            return joined;
+        }
+
+        static Counts of(ByteBuffer buffer, int start, int end, boolean countWords) {
+            Counts counts = new Counts();
+            counts.bytes = end - start;
+            if (end == start) return counts;
+            long lines = 0;
+            if (!countWords) {
+                for (int i = start; i < end; i++) {
+                    if (buffer.get(i) == '\n') lines++;
+                }
+                counts.lines = lines;
+                return counts;
+            }
+            long words = 0;
+            boolean inWord = false;
+            for (int i = start; i < end; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    lines++;
+                    inWord = false;
+                } else if (b == ' ' || (b >= '\t' && b <= '\r')) {
+                    inWord = false;
+                } else if (!inWord) {
+                    inWord = true;
+                    words++;
+                }
+            }
+            counts.lines = lines;
+            counts.words = words;
+            counts.startsInWord = !isSpace(buffer.get(start));
+            counts.endsInWord = inWord;
+            return counts;
+        }
+
+        private static boolean isSpace(byte b) {
+            return b == ' ' || (b >= '\t' && b <= '\r');
+        }
+    }
+
+    /** Counts piped input a buffer at a time. */
+    private static Counts countStream(InputStream in, boolean countWords) throws IOException {
+        byte[] bytes = new byte[STDIN_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        Counts counts = new Counts();
+        int read;
+        while ((read = in.read(bytes)) >= 0) {
+            counts = counts.then(Counts.of(buffer, 0, read, countWords));
+        }
+        return counts;
+    }
+
+    /** Counts one file, splitting it into chunks when it is large. */
+    private static final class FileCount extends RecursiveTask<Counts> {
+        private final Path path;
+        private final boolean countWords;
+        private final boolean sizeOnly;
+
+        FileCount(Path path, boolean countWords, boolean sizeOnly) {
+            this.path = path;
+            this.countWords = countWords;
+            this.sizeOnly = sizeOnly;
+        }
+
+        @Override
+        protected Counts compute() {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (sizeOnly) {
+                    Counts counts = new Counts();
+                    counts.bytes = size;
+                    return counts;
+                }
+                if (size <= MAP_THRESHOLD) {
+                    ByteBuffer bytes = ByteBuffer.allocate((int) size);
+                    while (bytes.hasRemaining() && channel.read(bytes, bytes.position()) >= 0) {
+                    }
+                    bytes.flip();
+                    return Counts.of(bytes, 0, bytes.limit(), countWords);
+                }
+                // The mappings stay valid after the channel is closed.
+                return new ChunkCount(channel, 0, size, countWords).invoke();
+            } catch (IOException e) {
+                throw new CountException(e);
+            }
+        }
+    }
+
+    /** Counts a range of a file, halving it until each half is one chunk. */
+    private static final class ChunkCount extends RecursiveTask<Counts> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final boolean countWords;
+
+        ChunkCount(FileChannel channel, long start, long end, boolean countWords) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.countWords = countWords;
+        }
+
+        @Override
+        protected Counts compute() {
+            if (end - start <= CHUNK_SIZE) {
+                try {
+                    ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                    return Counts.of(chunk, 0, chunk.limit(), countWords);
+                } catch (IOException e) {
+                    throw new CountException(e);
+                }
+            }
+            // Split on a chunk boundary so every leaf but the last is a whole chunk.
+            long middle = start + (end - start) / CHUNK_SIZE / 2 * CHUNK_SIZE;
+            if (middle == start) middle += CHUNK_SIZE;
+            ChunkCount second = new ChunkCount(channel, middle, end, countWords);
+            second.fork();
+            Counts first = new ChunkCount(channel, start, middle, countWords).compute();
+            return first.then(second.join());
+        }
+    }
+
+    /** Carries an I/O failure out of a counting task to the command, which reports it. */
+    private static final class CountException extends RuntimeException {
+        CountException(IOException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package oscli.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 'cat' of a large file into a channel (the transferTo path), into a plain stream (the
+ * buffered copy path) and with line numbering.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CatBenchmark {
+    @Param({"1048576", "268435456"})
+    public long fileSize;
+
+    private Path directory;
+    private FileChannel devNull;
+    private OutputStream channelOut;
+    private OutputStream streamOut;
+    private Object toChannel;
+    private Object toStream;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("oscli-bench-cat");
+        Fixtures.textFile(directory, "data.txt", fileSize);
+        devNull = Fixtures.devNull();
+        channelOut = Interpreter.sink(devNull);
+        streamOut = Interpreter.sink(OutputStream.nullOutputStream());
+        toChannel = Interpreter.context(directory, channelOut, channelOut);
+        toStream = Interpreter.context(directory, streamOut, streamOut);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channelOut.close();
+        streamOut.close();
+        devNull.close();
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public int catToChannel() throws IOException {
+        int status = Interpreter.run(toChannel, "cat data.txt");
+        channelOut.flush();
+        return status;
+    }
+
+    @Benchmark
+    public int catToStream() throws IOException {
+        int status = Interpreter.run(toStream, "cat data.txt");
+        streamOut.flush();
+        return status;
+    }
+
+    @Benchmark
+    public int catNumbered() throws IOException {
+        int status = Interpreter.run(toChannel, "cat -n data.txt");
+        channelOut.flush();
+        return status;
+    }
+}
@@ -0,0 +1,87 @@
+package oscli.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * 'sha256sum' and 'md5sum' of several large files (mapped, hashed in parallel) against
+ * hashing the same files line by line through Files.lines, the way 'cat' reads them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChecksumBenchmark {
+    @Param({"1048576", "67108864"})
+    public long fileSize;
+
+    @Param({"1", "8"})
+    public int files;
+
+    private Path directory;
+    private OutputStream out;
+    private Object context;
+    private String names;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("oscli-bench-sum");
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < files; i++) {
+            String name = "data-" + i + ".txt";
+            Fixtures.textFile(directory, name, fileSize);
+            list.append(' ').append(name);
+        }
+        names = list.toString();
+        out = Interpreter.sink(OutputStream.nullOutputStream());
+        context = Interpreter.context(directory, out, out);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        out.close();
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public int sha256sum() throws IOException {
+        int status = Interpreter.run(context, "sha256sum" + names);
+        out.flush();
+        return status;
+    }
+
+    @Benchmark
+    public int md5sum() throws IOException {
+        int status = Interpreter.run(context, "md5sum" + names);
+        out.flush();
+        return status;
+    }
+
+    @Benchmark
+    public String sha256OfLines() throws IOException, NoSuchAlgorithmException {
+        StringBuilder digests = new StringBuilder();
+        for (int i = 0; i < files; i++) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (Stream<String> lines = Files.lines(directory.resolve("data-" + i + ".txt"))) {
+                lines.forEach(line -> {
+                    digest.update(line.getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) '\n');
+                });
+            }
+            digests.append(HexFormat.of().formatHex(digest.digest())).append('\n');
+        }
+        return digests.toString();
+    }
+}
@@ -0,0 +1,66 @@
+package oscli.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** Tokenizing command lines, and the full parse-and-dispatch path for a trivial command. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DispatchBenchmark {
+    @State(Scope.Thread)
+    public static class Line {
+        @Param({
+                "pwd",
+                "ls -a -r",
+                "cat -n \"my file.txt\" | cat > 'out file.txt'"
+        })
+        public String line;
+
+        private Object lexer;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            lexer = Interpreter.newLexer();
+        }
+    }
+
+    private Path directory;
+    private FileChannel devNull;
+    private OutputStream out;
+    private Object context;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("oscli-bench-dispatch");
+        devNull = Fixtures.devNull();
+        out = Interpreter.sink(devNull);
+        context = Interpreter.context(directory, out, out);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        out.close();
+        devNull.close();
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public int tokenize(Line line) {
+        return Interpreter.tokenize(line.lexer, line.line);
+    }
+
+    @Benchmark
+    public int dispatchPwd() {
+        return Interpreter.run(context, "pwd");
+    }
+}
@@ -0,0 +1,53 @@
+package oscli.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/** Test data shared by the benchmarks: populated directories, large files and a sink to /dev/null. */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    static Path directoryWithFiles(int entries) throws IOException {
+        Path directory = Files.createTempDirectory("oscli-bench-ls");
+        for (int i = 0; i < entries; i++) {
+            Files.createFile(directory.resolve(String.format("file-%07d.txt", i)));
+        }
+        return directory;
+    }
+
+    /** Writes a text file of roughly the given size made of short numbered lines. */
+    static Path textFile(Path directory, String name, long size) throws IOException {
+        Path file = directory.resolve(name);
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            long written = 0;
+            for (long line = 0; written < size; line++) {
+                String text = "line " + line + " of the benchmark data set\n";
+                writer.write(text);
+                written += text.length();
+            }
+        }
+        return file;
+    }
+
+    /** A writable channel that discards everything, so only the interpreter's work is measured. */
+    static FileChannel devNull() throws IOException {
+        return FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE);
+    }
+
+    static void delete(Path directory) throws IOException {
+        if (directory == null) return;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
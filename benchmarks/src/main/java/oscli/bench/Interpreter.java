@@ -0,0 +1,129 @@
+package oscli.bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * Reaches the interpreter's package-private entry points. The interpreter lives in the
+ * unnamed package, which code in a named package (as JMH requires) cannot refer to, so the
+ * few members the benchmarks need are looked up once and held as constant method handles,
+ * which the JIT inlines like direct calls.
+ */
+final class Interpreter {
+    private static final MethodHandle NEW_SESSION;
+    private static final MethodHandle SINK_OF_CHANNEL;
+    private static final MethodHandle SINK_OF_STREAM;
+    private static final MethodHandle NEW_CONTEXT;
+    private static final MethodHandle RUN;
+    private static final MethodHandle NEW_LEXER;
+    private static final MethodHandle TOKENIZE;
+
+    static {
+        try {
+            Class<?> session = Class.forName("Session");
+            Class<?> sink = Class.forName("OutputSink");
+            Class<?> context = Class.forName("CommandContext");
+            Class<?> interpreter = Class.forName("CommandLineInterpreter");
+            Class<?> lexer = Class.forName("Lexer");
+
+            NEW_SESSION = constructor(session, Path.class)
+                    .asType(MethodType.methodType(Object.class, Path.class));
+            SINK_OF_CHANNEL = method(sink, "of", WritableByteChannel.class)
+                    .asType(MethodType.methodType(OutputStream.class, WritableByteChannel.class));
+            SINK_OF_STREAM = method(sink, "of", OutputStream.class)
+                    .asType(MethodType.methodType(OutputStream.class, OutputStream.class));
+            NEW_CONTEXT = constructor(context, session, InputStream.class, sink, sink)
+                    .asType(MethodType.methodType(Object.class, Object.class, InputStream.class,
+                            OutputStream.class, OutputStream.class));
+            RUN = method(interpreter, "run", context, String.class)
+                    .asType(MethodType.methodType(int.class, Object.class, String.class));
+            NEW_LEXER = constructor(lexer)
+                    .asType(MethodType.methodType(Object.class));
+            TOKENIZE = method(lexer, "tokenize", String.class)
+                    .asType(MethodType.methodType(int.class, Object.class, String.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Interpreter() {
+    }
+
+    /** A buffered OutputSink over a channel, typed as the OutputStream it extends. */
+    static OutputStream sink(WritableByteChannel channel) {
+        try {
+            return (OutputStream) SINK_OF_CHANNEL.invokeExact(channel);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** A buffered OutputSink over a stream, typed as the OutputStream it extends. */
+    static OutputStream sink(OutputStream stream) {
+        try {
+            return (OutputStream) SINK_OF_STREAM.invokeExact(stream);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** A command context for a fresh session in the given directory, writing to the given sinks. */
+    static Object context(Path directory, OutputStream stdout, OutputStream stderr) {
+        try {
+            Object session = (Object) NEW_SESSION.invokeExact(directory);
+            return (Object) NEW_CONTEXT.invokeExact(session, (InputStream) null, stdout, stderr);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** Runs one line of input, exactly as the prompt, a script or a server session would. */
+    static int run(Object context, String line) {
+        try {
+            return (int) RUN.invokeExact(context, line);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object newLexer() {
+        try {
+            return (Object) NEW_LEXER.invokeExact();
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static int tokenize(Object lexer, String line) {
+        try {
+            return (int) TOKENIZE.invokeExact(lexer, line);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> type, Class<?>... parameters) throws ReflectiveOperationException {
+        Constructor<?> constructor = type.getDeclaredConstructor(parameters);
+        constructor.setAccessible(true);
+        return MethodHandles.lookup().unreflectConstructor(constructor);
+    }
+
+    private static MethodHandle method(Class<?> type, String name, Class<?>... parameters) throws ReflectiveOperationException {
+        Method method = type.getDeclaredMethod(name, parameters);
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method);
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) return (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        return new IllegalStateException(e);
+    }
+}
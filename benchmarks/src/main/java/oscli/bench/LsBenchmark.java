@@ -0,0 +1,63 @@
+package oscli.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** 'ls' over directories of increasing size, written to /dev/null. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LsBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int entries;
+
+    private Path directory;
+    private FileChannel devNull;
+    private OutputStream out;
+    private Object context;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Fixtures.directoryWithFiles(entries);
+        devNull = Fixtures.devNull();
+        out = Interpreter.sink(devNull);
+        context = Interpreter.context(directory, out, out);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        out.close();
+        devNull.close();
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public int ls() throws IOException {
+        int status = Interpreter.run(context, "ls");
+        out.flush();
+        return status;
+    }
+
+    // Directories up to 100k entries are served from the listing cache after the first run.
+    @Benchmark
+    public int lsUncached() throws IOException {
+        int status = Interpreter.run(context, "ls --no-cache");
+        out.flush();
+        return status;
+    }
+
+    @Benchmark
+    public int lsAll() throws IOException {
+        int status = Interpreter.run(context, "ls -a -r");
+        out.flush();
+        return status;
+    }
+}
@@ -0,0 +1,71 @@
+package oscli.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** Pipelines (the old handlePipe path) and redirections (the old handleRedirection path). */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PipeBenchmark {
+    private static final long FILE_SIZE = 16L * 1024 * 1024;
+    private static final int ENTRIES = 10_000;
+
+    private Path directory;
+    private FileChannel devNull;
+    private OutputStream out;
+    private Object context;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Fixtures.directoryWithFiles(ENTRIES);
+        Fixtures.textFile(directory, "data.txt", FILE_SIZE);
+        devNull = Fixtures.devNull();
+        out = Interpreter.sink(devNull);
+        context = Interpreter.context(directory, out, out);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        out.close();
+        devNull.close();
+        Fixtures.delete(directory);
+    }
+
+    @Benchmark
+    public int pipeLs() throws IOException {
+        int status = Interpreter.run(context, "ls | cat");
+        out.flush();
+        return status;
+    }
+
+    @Benchmark
+    public int pipeCatThreeStages() throws IOException {
+        int status = Interpreter.run(context, "cat data.txt | cat | cat");
+        out.flush();
+        return status;
+    }
+
+    @Benchmark
+    public int redirectLs() throws IOException {
+        int status = Interpreter.run(context, "ls > listing.out");
+        out.flush();
+        return status;
+    }
+
+    @Benchmark
+    public int redirectCat() throws IOException {
+        int status = Interpreter.run(context, "cat data.txt > copy.out");
+        out.flush();
+        return status;
+    }
+}